@@ -0,0 +1,176 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Scanner;
+
+/**
+ * Chooses the degree and cache size for a BTree build, or the cache size for a search,
+ * by trying a range of them on a sample of the input before the real run.
+ *
+ * Each configuration inserts (or searches for) the same sample of sequences. The node
+ * reads, node writes and cache hit rate of each one are reported, and the fastest one is
+ * chosen. A configuration is stopped as soon as it has taken longer than the fastest one
+ * so far, since it can no longer win. The report is printed to standard error so that it
+ * does not mix with the results.
+ */
+public class AutoTuner {
+
+	private static final int SAMPLE_SIZE = 50000;		//number of sequences each configuration is tried on
+	private static final int[] DEGREES = {0, 16, 32, 64, 204};	//0 is the optimal degree for a 4096 byte block
+	private static final int[] CACHE_SIZES = {0, 10, 100, 500};
+	private static final int CHECK_INTERVAL = 1000;	//sequences between checks of the elapsed time
+
+	private static PrintStream report = System.err;
+
+	/**
+	 * Try every degree and cache size on the first sequences of a gbk file, on a scratch
+	 * BTree file next to the gbk file.
+	 * @param gbkFile The gbk file that will be built
+	 * @param k The sequence length
+	 * @return The best degree and cache size (0 for no cache), in that order
+	 * @throws IOException If the gbk file cannot be read or the scratch file cannot be written
+	 */
+	public static int[] tuneBuild(File gbkFile, int k) throws IOException {
+		long[] keys = sampleGbk(gbkFile, k);
+		String scratchName = gbkFile.getPath()+".autotune";
+		report.println("Tuning on "+keys.length+" sequences of "+gbkFile.getName());
+		report.println("degree  cache  node reads  node writes  hit rate      time");
+
+		trialBuild(keys, k, 0, 0, scratchName, Long.MAX_VALUE, false);	//warm up, so the first configuration is not penalized
+		int[] best = null;
+		long bestTime = Long.MAX_VALUE;
+		for (int degree : DEGREES) {
+			for (int cacheSize : CACHE_SIZES) {
+				long[] result = trialBuild(keys, k, degree, cacheSize, scratchName, bestTime, true);
+				if (result[0] >= 0 && result[0] < bestTime) {
+					bestTime = result[0];
+					best = new int[] {(int) result[1], cacheSize};
+				}
+			}
+		}
+		report.println("Chose degree "+best[0]+(best[1] > 0 ? " with a cache of "+best[1] : " without a cache"));
+		return best;
+	}
+
+	/**
+	 * Insert the sample into a new scratch BTree and report its counters.
+	 * @param limit Stop once this many nanoseconds have passed
+	 * @param print Whether to add the configuration to the report
+	 * @return The time taken in nanoseconds (-1 if it was stopped) and the actual degree
+	 */
+	private static long[] trialBuild(long[] keys, int k, int degree, int cacheSize, String scratchName, long limit,
+			boolean print) throws IOException {
+		BTree btree = (cacheSize > 0) ? new BTree(degree, k, scratchName, cacheSize) : new BTree(degree, k, scratchName);
+		long start = System.nanoTime();
+		int n = 0;
+		try {
+			for (; n < keys.length; n++) {
+				btree.BTreeInsert(keys[n]);
+				if (n % CHECK_INTERVAL == 0 && System.nanoTime()-start > limit)
+					break;
+			}
+		} finally {
+			btree.close();
+			new File(btree.getFileName()).delete();
+		}
+		long time = System.nanoTime()-start;
+		if (print)
+			printRow(btree, btree.getDegree(), cacheSize, time, n, keys.length);
+		return new long[] {(n < keys.length) ? -1 : time, btree.getDegree()};
+	}
+
+	/**
+	 * Search an existing BTree for a sample of the queries with every cache size.
+	 * @param btreeFileName The BTree file that will be searched
+	 * @param queryFile The query file
+	 * @return The best cache size (0 for no cache)
+	 * @throws IOException If either file cannot be read
+	 */
+	public static int tuneSearch(String btreeFileName, File queryFile) throws IOException {
+		BTree btree = new BTree(btreeFileName);
+		int k = btree.getK(), degree = btree.getDegree();
+		btree.close();
+		long[] keys = sampleQueries(queryFile, k);
+		report.println("Tuning on "+keys.length+" queries of "+queryFile.getName());
+		report.println("degree  cache  node reads  node writes  hit rate      time");
+
+		trialSearch(keys, btreeFileName, 0, Long.MAX_VALUE, false);	//warm up
+		int best = 0;
+		long bestTime = Long.MAX_VALUE;
+		for (int cacheSize : CACHE_SIZES) {
+			long time = trialSearch(keys, btreeFileName, cacheSize, bestTime, true);
+			if (time >= 0 && time < bestTime) {
+				bestTime = time;
+				best = cacheSize;
+			}
+		}
+		report.println("Chose "+(best > 0 ? "a cache of "+best : "no cache")+" for degree "+degree);
+		return best;
+	}
+
+	/**
+	 * Search the BTree for the sample and report its counters.
+	 * @param limit Stop once this many nanoseconds have passed
+	 * @param print Whether to add the configuration to the report
+	 * @return The time taken in nanoseconds (-1 if it was stopped)
+	 */
+	private static long trialSearch(long[] keys, String btreeFileName, int cacheSize, long limit, boolean print) throws IOException {
+		BTree btree = (cacheSize > 0) ? new BTree(btreeFileName, cacheSize) : new BTree(btreeFileName);
+		long start = System.nanoTime();
+		int n = 0;
+		try {
+			for (; n < keys.length; n++) {
+				btree.search(keys[n]);
+				if (n % CHECK_INTERVAL == 0 && System.nanoTime()-start > limit)
+					break;
+			}
+		} finally {
+			btree.close();
+		}
+		long time = System.nanoTime()-start;
+		if (print)
+			printRow(btree, btree.getDegree(), cacheSize, time, n, keys.length);
+		return (n < keys.length) ? -1 : time;
+	}
+
+	/**
+	 * Print one line of the report.
+	 */
+	private static void printRow(BTree btree, int degree, int cacheSize, long time, int done, int total) {
+		long lookups = btree.getCacheHits()+btree.getCacheMisses();
+		String hitRate = (lookups > 0) ? String.format("%7.1f%%", 100.0*btree.getCacheHits()/lookups) : "       -";
+		String status = (done < total) ? "  (stopped after "+done+")" : "";
+		report.println(String.format("%6d  %5d  %10d  %11d  %s  %6d ms%s", degree, cacheSize,
+				btree.getNodeReads(), btree.getNodeWrites(), hitRate, time/1000000, status));
+	}
+
+	/**
+	 * Return the keys of the first SAMPLE_SIZE sequences of a gbk file.
+	 */
+	private static long[] sampleGbk(File gbkFile, int k) throws IOException {
+		long[] keys = new long[SAMPLE_SIZE];
+		int n = 0;
+		try (InputStream in = new GeneBankInputStream(gbkFile)) {
+			KmerParser kmers = new KmerParser(in, k);
+			long key;
+			while (n < SAMPLE_SIZE && (key = kmers.next()) != -1)
+				keys[n++] = key;
+		}
+		return Arrays.copyOf(keys, n);
+	}
+
+	/**
+	 * Return the keys of the first SAMPLE_SIZE queries of a query file.
+	 */
+	private static long[] sampleQueries(File queryFile, int k) throws IOException {
+		long[] keys = new long[SAMPLE_SIZE];
+		int n = 0;
+		try (Scanner scan = new Scanner(queryFile)) {
+			while (n < SAMPLE_SIZE && scan.hasNext())
+				keys[n++] = new TreeObject(scan.next(), k).getKey();
+		}
+		return Arrays.copyOf(keys, n);
+	}
+}
@@ -0,0 +1,530 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A B+Tree of sequence frequencies: every (key, frequency) pair is stored in a leaf, the
+ * leaves are chained in key order by next pointers, and internal nodes only hold
+ * separator keys and child pointers. Without frequencies an internal node fits 255 keys
+ * in a 4096 byte block (the BTree fits 203), and an ordered scan (dump, prefix search)
+ * is a walk along the leaf chain that never goes back up to an internal node. In a tree
+ * written by export() the leaves are also next to each other in the file, so the walk
+ * reads the file sequentially.
+ *
+ * Internal nodes are few (about one per 256 leaves), so every internal node that is read
+ * is kept in memory; a search or insert reads at most one leaf from the file. Child i of
+ * an internal node holds the keys from separator i-1 (inclusive) to separator i.
+ *
+ * File layout:
+ *   magic "GBBP" (4 bytes), k (1 byte), unused (3 bytes), root pointer (8 bytes),
+ *   first leaf pointer (8 bytes), next free pointer (8 bytes), number of keys (8 bytes),
+ *   height (4 bytes), unused up to HEADER_SIZE,
+ *   then nodes of NODE_SIZE bytes:
+ *   leaf: 1 (1 byte), unused (3 bytes), number of keys (4 bytes), next leaf pointer (8 bytes,
+ *         0 for the last leaf), then LEAF_CAPACITY keys (8 bytes each) and frequencies (4 bytes each)
+ *   internal: 0 (1 byte), unused (3 bytes), number of keys (4 bytes),
+ *         then INTERNAL_CAPACITY keys and INTERNAL_CAPACITY+1 child pointers (8 bytes each)
+ */
+public class BPlusTree implements KmerIndex {
+
+	public static final int MAGIC = 0x47424250;	//"GBBP"
+	private static final int HEADER_SIZE = 4096;
+	private static final int NODE_SIZE = 4096;
+	private static final int LEAF_CAPACITY = (NODE_SIZE-16)/12;			//340
+	private static final int INTERNAL_CAPACITY = (NODE_SIZE-16)/16;		//255
+
+	private int k;
+	private long root;					//pointer of the root node
+	private long firstLeaf;				//pointer of the leftmost leaf
+	private long nextFree;				//where the next node will be allocated
+	private long keyCount;				//number of distinct keys
+	private int height;					//number of levels, including the leaves
+	private String gbkFileName;
+	private String fileName;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(NODE_SIZE);	//reused for every node read and write
+	private HashMap<Long,Node> internalNodes = new HashMap<Long,Node>();	//every internal node read so far
+	private long nodeReads, nodeWrites;
+
+	/**
+	 * Create a new, empty B+Tree.
+	 * @param k The sequence length
+	 * @param gbkFileName The name of the gbk file; the tree is written to "<gbkFileName>.bplus.data.<k>"
+	 * @throws IOException If the file cannot be created
+	 */
+	public BPlusTree(int k, String gbkFileName) throws IOException {
+		this(k, gbkFileName, gbkFileName+".bplus.data."+k);
+	}
+
+	/**
+	 * Create a new, empty B+Tree in the given file.
+	 */
+	private BPlusTree(int k, String gbkFileName, String fileName) throws IOException {
+		this.k = k;
+		this.gbkFileName = gbkFileName;
+		this.fileName = fileName;
+		File tmp = new File(fileName);
+		if (tmp.exists())
+			tmp.delete();
+		file = new RandomAccessFile(fileName, "rw");
+		channel = file.getChannel();
+		nextFree = HEADER_SIZE;
+		Node leaf = new Node(true, allocatePointer());
+		writeNode(leaf);
+		root = firstLeaf = leaf.pointer;
+		height = 1;
+		writeHeader();
+	}
+
+	/**
+	 * Open an existing B+Tree file.
+	 * @param fileName The B+Tree file
+	 * @throws IOException If the file cannot be read or is not a B+Tree file
+	 */
+	public BPlusTree(String fileName) throws IOException {
+		this.fileName = fileName;
+		file = new RandomAccessFile(fileName, "rw");
+		channel = file.getChannel();
+		if (file.readInt() != MAGIC)
+			throw new IOException(fileName+" is not a B+Tree file");
+		k = file.readByte();
+		file.skipBytes(3);
+		root = file.readLong();
+		firstLeaf = file.readLong();
+		nextFree = file.readLong();
+		keyCount = file.readLong();
+		height = file.readInt();
+		gbkFileName = fileName.contains(".bplus.data.") ? fileName.substring(0, fileName.lastIndexOf(".bplus.data.")) : fileName;
+	}
+
+	/**
+	 * Write the metadata to the start of the file.
+	 */
+	private void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(44);
+		header.putInt(MAGIC);
+		header.put((byte) k);
+		header.put(new byte[3]);
+		header.putLong(root);
+		header.putLong(firstLeaf);
+		header.putLong(nextFree);
+		header.putLong(keyCount);
+		header.putInt(height);
+		header.flip();
+		channel.write(header, 0);
+	}
+
+	/**
+	 * Reserve space for a new node at the end of the file.
+	 */
+	private long allocatePointer() {
+		long pointer = nextFree;
+		nextFree += NODE_SIZE;
+		return pointer;
+	}
+
+	/**
+	 * Insert one occurrence of a sequence, given as its key (binary sequence).
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public void insert(long key) throws IOException {
+		//find the leaf, remembering the path to it
+		Node[] path = new Node[height];
+		int[] childIndexes = new int[height];
+		Node node = readNode(root);
+		for (int level=0; !node.leaf; level++) {
+			path[level] = node;
+			childIndexes[level] = childIndex(node, key);
+			node = readNode(node.children[childIndexes[level]]);
+		}
+
+		int i = Arrays.binarySearch(node.keys, 0, node.numKeys, key);
+		if (i >= 0) {
+			node.frequencies[i]++;
+			writeNode(node);
+			return;
+		}
+		i = -i-1;
+		System.arraycopy(node.keys, i, node.keys, i+1, node.numKeys-i);
+		System.arraycopy(node.frequencies, i, node.frequencies, i+1, node.numKeys-i);
+		node.keys[i] = key;
+		node.frequencies[i] = 1;
+		node.numKeys++;
+		keyCount++;
+		if (node.numKeys <= LEAF_CAPACITY) {
+			writeNode(node);
+			return;
+		}
+
+		//split the leaf; its new right sibling's first key separates the two
+		Node right = new Node(true, allocatePointer());
+		int half = node.numKeys/2;
+		right.numKeys = node.numKeys-half;
+		System.arraycopy(node.keys, half, right.keys, 0, right.numKeys);
+		System.arraycopy(node.frequencies, half, right.frequencies, 0, right.numKeys);
+		node.numKeys = half;
+		right.next = node.next;
+		node.next = right.pointer;
+		writeNode(right);
+		writeNode(node);
+		long separator = right.keys[0];
+		long newChild = right.pointer;
+
+		//insert the separator into the parents, splitting them as long as they overflow
+		for (int level=height-2; level>=0; level--) {
+			Node parent = path[level];
+			int c = childIndexes[level];
+			System.arraycopy(parent.keys, c, parent.keys, c+1, parent.numKeys-c);
+			System.arraycopy(parent.children, c+1, parent.children, c+2, parent.numKeys-c);
+			parent.keys[c] = separator;
+			parent.children[c+1] = newChild;
+			parent.numKeys++;
+			if (parent.numKeys <= INTERNAL_CAPACITY) {
+				writeNode(parent);
+				return;
+			}
+
+			//the middle key moves up instead of being copied
+			Node sibling = new Node(false, allocatePointer());
+			int middle = parent.numKeys/2;
+			sibling.numKeys = parent.numKeys-middle-1;
+			System.arraycopy(parent.keys, middle+1, sibling.keys, 0, sibling.numKeys);
+			System.arraycopy(parent.children, middle+1, sibling.children, 0, sibling.numKeys+1);
+			separator = parent.keys[middle];
+			parent.numKeys = middle;
+			internalNodes.put(sibling.pointer, sibling);
+			writeNode(sibling);
+			writeNode(parent);
+			newChild = sibling.pointer;
+		}
+
+		//the root was split
+		Node newRoot = new Node(false, allocatePointer());
+		newRoot.numKeys = 1;
+		newRoot.keys[0] = separator;
+		newRoot.children[0] = root;
+		newRoot.children[1] = newChild;
+		internalNodes.put(newRoot.pointer, newRoot);
+		writeNode(newRoot);
+		root = newRoot.pointer;
+		height++;
+	}
+
+	/**
+	 * Return the frequency of a sequence, given as its key (0 if it is not in the tree).
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public int search(long key) throws IOException {
+		Node node = readNode(root);
+		while (!node.leaf)
+			node = readNode(node.children[childIndex(node, key)]);
+		int i = Arrays.binarySearch(node.keys, 0, node.numKeys, key);
+		return (i >= 0) ? node.frequencies[i] : 0;
+	}
+
+	/**
+	 * Return the index of the child of an internal node that can hold a key: the number
+	 * of separators that are at most the key.
+	 */
+	private static int childIndex(Node node, long key) {
+		int i = Arrays.binarySearch(node.keys, 0, node.numKeys, key);
+		return (i >= 0) ? i+1 : -i-1;
+	}
+
+	/**
+	 * Finds every sequence in the tree that starts with the given prefix.
+	 * @param prefix The prefix to search for (at most k characters long)
+	 * @return The matching TreeObjects, in sorted order
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public ArrayList<TreeObject> prefixSearch(String prefix) throws IOException {
+		if (prefix.length() > k)
+			throw new IllegalArgumentException("The prefix cannot be longer than k");
+
+		//every sequence with this prefix lies between prefix+"aaa..." and prefix+"ttt..."
+		long low = 0;
+		int shift = 2*(k-prefix.length());
+		if (prefix.length() > 0)
+			low = new TreeObject(prefix, prefix.length()).getKey() << shift;
+		long high = low | ((1L<<shift)-1);
+
+		//find the leaf that can hold low, then walk the leaf chain from there
+		Node node = readNode(root);
+		while (!node.leaf)
+			node = readNode(node.children[childIndex(node, low)]);
+		int i = Arrays.binarySearch(node.keys, 0, node.numKeys, low);
+		LeafIterator iterator = new LeafIterator(node, (i >= 0) ? i : -i-1);
+
+		ArrayList<TreeObject> results = new ArrayList<TreeObject>();
+		TreeObject object;
+		while ((object = iterator.next()) != null && object.getKey() <= high)
+			results.add(object);
+		return results;
+	}
+
+	/**
+	 * Return an iterator over the TreeObjects of the tree in sorted order.
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public LeafIterator iterator() throws IOException {
+		return new LeafIterator(readNode(firstLeaf), 0);
+	}
+
+	/**
+	 * Creates a dump file of the tree, in the same format as BTree.createDumpFile().
+	 * @throws IOException If there is an error creating the dump file.
+	 */
+	public void createDumpFile() throws IOException {
+		try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(gbkFileName+".bplus.dump."+k), 1<<16))) {
+			LeafIterator iterator = iterator();
+			TreeObject object;
+			while ((object = iterator.next()) != null)
+				out.println(object.getSequence()+": "+object.getFrequency());
+		}
+	}
+
+	/**
+	 * Write every TreeObject of a finished BTree, in order, to a new B+Tree file. The
+	 * leaves are filled completely and written one after another, then each level of
+	 * internal nodes above them, so the file is written sequentially and the leaf chain
+	 * runs forward through the file.
+	 * @param btree The BTree to export
+	 * @param fileName The B+Tree file to create
+	 * @throws IOException If either file cannot be accessed
+	 */
+	public static void export(BTree btree, String fileName) throws IOException {
+		BPlusTree tree = new BPlusTree(btree.getK(), BTree.getGbkFileName(btree.getFileName()), fileName);
+		tree.nextFree = HEADER_SIZE;
+
+		//first key and pointer of every node of the level being built
+		long[] firstKeys = new long[1024], pointers = new long[1024];
+		int count = 0;
+		BTree.TreeIterator iterator = btree.iterator();
+		Node leaf = new Node(true, tree.allocatePointer());
+		TreeObject object;
+		while ((object = iterator.next()) != null) {
+			if (leaf.numKeys == LEAF_CAPACITY) {
+				leaf.next = tree.allocatePointer();
+				tree.writeNode(leaf);
+				if (count == firstKeys.length) {
+					firstKeys = Arrays.copyOf(firstKeys, 2*count);
+					pointers = Arrays.copyOf(pointers, 2*count);
+				}
+				firstKeys[count] = leaf.keys[0];
+				pointers[count++] = leaf.pointer;
+				leaf = new Node(true, leaf.next);
+			}
+			leaf.keys[leaf.numKeys] = object.getKey();
+			leaf.frequencies[leaf.numKeys++] = object.getFrequency();
+			tree.keyCount++;
+		}
+		tree.writeNode(leaf);
+		if (count == firstKeys.length) {
+			firstKeys = Arrays.copyOf(firstKeys, count+1);
+			pointers = Arrays.copyOf(pointers, count+1);
+		}
+		firstKeys[count] = leaf.keys[0];
+		pointers[count++] = leaf.pointer;
+
+		//build each level of internal nodes from the one below, spreading the children
+		//evenly so that no node is left with a single child
+		tree.height = 1;
+		while (count > 1) {
+			int nodes = (count+INTERNAL_CAPACITY)/(INTERNAL_CAPACITY+1);
+			int child = 0;
+			for (int n=0; n<nodes; n++) {
+				int children = count/nodes+((n < count%nodes) ? 1 : 0);
+				Node node = new Node(false, tree.allocatePointer());
+				for (int c=0; c<children; c++) {
+					if (c > 0)
+						node.keys[c-1] = firstKeys[child+c];
+					node.children[c] = pointers[child+c];
+				}
+				node.numKeys = children-1;
+				tree.writeNode(node);
+				firstKeys[n] = firstKeys[child];
+				pointers[n] = node.pointer;
+				child += children;
+			}
+			count = nodes;
+			tree.height++;
+		}
+		tree.root = pointers[0];
+		tree.close();
+	}
+
+	/**
+	 * Return the node at a pointer, from memory if it is an internal node read before.
+	 */
+	private Node readNode(long pointer) throws IOException {
+		Node node = internalNodes.get(pointer);
+		if (node != null)
+			return node;
+		nodeReads++;
+		buffer.clear();
+		while (buffer.hasRemaining() && channel.read(buffer, pointer+buffer.position()) > 0);
+		buffer.flip();
+		node = new Node(buffer.get() != 0, pointer);
+		buffer.position(4);
+		node.numKeys = buffer.getInt();
+		if (node.leaf) {
+			node.next = buffer.getLong();
+			for (int i=0; i<node.numKeys; i++)
+				node.keys[i] = buffer.getLong();
+			buffer.position(16+8*LEAF_CAPACITY);
+			for (int i=0; i<node.numKeys; i++)
+				node.frequencies[i] = buffer.getInt();
+		}
+		else {
+			for (int i=0; i<node.numKeys; i++)
+				node.keys[i] = buffer.getLong();
+			buffer.position(8+8*INTERNAL_CAPACITY);
+			for (int i=0; i<=node.numKeys; i++)
+				node.children[i] = buffer.getLong();
+			internalNodes.put(pointer, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Write a node to its place in the file.
+	 */
+	private void writeNode(Node node) throws IOException {
+		nodeWrites++;
+		buffer.clear();
+		buffer.put((byte) (node.leaf ? 1 : 0));
+		buffer.put(new byte[3]);
+		buffer.putInt(node.numKeys);
+		if (node.leaf) {
+			buffer.putLong(node.next);
+			for (int i=0; i<node.numKeys; i++)
+				buffer.putLong(node.keys[i]);
+			buffer.position(16+8*LEAF_CAPACITY);
+			for (int i=0; i<node.numKeys; i++)
+				buffer.putInt(node.frequencies[i]);
+		}
+		else {
+			for (int i=0; i<node.numKeys; i++)
+				buffer.putLong(node.keys[i]);
+			buffer.position(8+8*INTERNAL_CAPACITY);
+			for (int i=0; i<=node.numKeys; i++)
+				buffer.putLong(node.children[i]);
+		}
+		buffer.position(NODE_SIZE);
+		buffer.flip();
+		long position = node.pointer;
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * Return the number of distinct sequences in the tree.
+	 */
+	public long getKeyCount() {
+		return keyCount;
+	}
+
+	/**
+	 * Return the number of levels of the tree, including the leaves.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Return the name of the B+Tree file.
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Return the number of nodes read from the file.
+	 */
+	public long getNodeReads() {
+		return nodeReads;
+	}
+
+	/**
+	 * Return the number of nodes written to the file.
+	 */
+	public long getNodeWrites() {
+		return nodeWrites;
+	}
+
+	/**
+	 * Write the metadata and close the file.
+	 */
+	public void close() throws IOException {
+		if (!channel.isOpen())
+			return;
+		writeHeader();
+		file.close();
+	}
+
+	/**
+	 * A node as it is held in memory. The arrays have room for one entry more than a
+	 * node can hold, so an insert can overflow a node before it is split.
+	 */
+	private static class Node {
+		final boolean leaf;
+		final long pointer;
+		int numKeys;
+		final long[] keys;
+		final int[] frequencies;	//leaves only
+		final long[] children;		//internal nodes only
+		long next;					//next leaf (0 for the last leaf)
+
+		Node(boolean leaf, long pointer) {
+			this.leaf = leaf;
+			this.pointer = pointer;
+			keys = new long[(leaf ? LEAF_CAPACITY : INTERNAL_CAPACITY)+1];
+			frequencies = leaf ? new int[LEAF_CAPACITY+1] : null;
+			children = leaf ? null : new long[INTERNAL_CAPACITY+2];
+		}
+	}
+
+	/**
+	 * Iterates over the TreeObjects of the tree in sorted order by following the leaf
+	 * chain. Only the current leaf is kept in memory.
+	 */
+	public class LeafIterator {
+
+		private Node leaf;		//the current leaf (null at the end)
+		private int index;		//index of the next TreeObject in the leaf
+
+		private LeafIterator(Node leaf, int index) {
+			this.leaf = leaf;
+			this.index = index;
+		}
+
+		/**
+		 * Return the next TreeObject (null once every TreeObject has been returned).
+		 * @throws IOException If there is an error accessing the file
+		 */
+		public TreeObject next() throws IOException {
+			while (leaf != null && index == leaf.numKeys) {
+				leaf = (leaf.next != 0) ? readNode(leaf.next) : null;
+				index = 0;
+			}
+			if (leaf == null)
+				return null;
+			TreeObject object = new TreeObject(leaf.keys[index], k);
+			object.setFrequency(leaf.frequencies[index++]);
+			return object;
+		}
+	}
+}
@@ -1,15 +1,29 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Allows the user to create and manage a BTree structure.
  */
-public class BTree {
+public class BTree implements KmerIndex {
 
 	private int degree;					//degree of the BTree
 	private final int maxKeys, minKeys;	//max/min number of keys for each node			
@@ -17,9 +31,34 @@ public class BTree {
 	private BTreeNode root; 			//root node
 	private RandomAccessFile file;		//Random Access File
 	private final int NODE_SIZE;
+	private static final int LEGACY_HEADER_SIZE = 13;	//size of the metadata in files without an extended header
+	private static final int HEADER_SIZE = 4096;		//size of the metadata (one disk block) in new files
+	private static final byte EXTENDED_HEADER = (byte) 0x80;	//set in the first byte of files with an extended header
+	private static final int EXTENT_SIZE = 1<<20;		//the file grows by at least this many bytes at a time
+	private int headerSize;				//where the nodes start in the file
+	private boolean extendedHeader;		//false for files written before the extended header existed
+	private long nextFree;				//where the next node will be allocated
+	private static final int[] CHECKPOINT_SLOTS = {512, 1024};	//where the two checkpoint records are in the extended header
+	private static final int CHECKPOINT_SIZE = 512;
+	private RandomAccessFile journal;	//old contents of nodes changed since the last checkpoint (null when not checkpointing)
+	private HashSet<Long> journaled;	//nodes already saved in the journal
+	private long checkpointNextFree;	//nodes from here on were allocated after the last checkpoint
+	private long checkpointSequence;	//number of the last checkpoint
+	private static final int COPY_ON_WRITE = 1;	//flag in the extended header
+	private static final int MIN_COUNT = 2;		//flag in the extended header: sequences below minCount were left out
+	private int minCount;				//the smallest frequency kept (0 if every sequence was kept)
+	private boolean copyOnWrite;		//nodes of the last checkpoint are never overwritten
+	private HashMap<Long,Long> relocated = new HashMap<Long,Long>();	//where each moved node now is, by its original pointer
+	private static final int STATS_OFFSET = 2048;	//where the statistics block is in the extended header
+	private Stats stats;				//kept up to date by inserts (null if the file has no statistics block)
 	private String gbkFileName;			//the filename of the gbk file
+	private String btreeFileName;		//the filename of the BTree file
 	private boolean usingCache;				//Cache status; if its 1, we are using a cache. if 0, we are not.
 	private Cache<Long> cache;
+	private long nodeReads, nodeWrites;		//number of nodes read from and written to the file
+	private long cacheHits, cacheMisses;	//number of cache lookups that found / did not find the sequence
+	public static final int TRACE_MAGIC = 0x47425452;	//"GBTR"
+	private DataOutputStream trace;			//log of node accesses (null when not tracing)
 	/**
 	 * Create a new BTree of TreeObjects (does not use a cache; default constructor).
 	 * @param degree The degree of the tree.
@@ -47,17 +86,16 @@ public class BTree {
 			if (tmp.exists())
 				tmp.delete();
 			
-			file = new RandomAccessFile(gbkFileName+".btree.data."+k+"."+this.degree, "rw");
+			btreeFileName = gbkFileName+".btree.data."+k+"."+this.degree;
+			file = new RandomAccessFile(btreeFileName, "rw");
 			//write BTree metadata
-			ByteBuffer buffer = ByteBuffer.allocate(13);
-			buffer.put((byte) k);	//cast k as byte since size is limited to 31
-			buffer.putInt(degree);
-			buffer.putLong(13);	//root pointer will always be 13
-			//byte[] array = null;
-			//buffer.put(array);
-			file.write(buffer.array());
+			extendedHeader = true;
+			headerSize = HEADER_SIZE;
+			nextFree = HEADER_SIZE;
+			stats = new Stats();
 			root = allocateNode();
 			root.writeNode();	//write root to file to allocate space, even though it will be empty
+			writeHeader();
 
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -97,19 +135,18 @@ public class BTree {
 			if (tmp.exists())
 				tmp.delete();
 			
-			file = new RandomAccessFile(gbkFileName+".btree.data."+k+"."+this.degree, "rw");
+			btreeFileName = gbkFileName+".btree.data."+k+"."+this.degree;
+			file = new RandomAccessFile(btreeFileName, "rw");
 
 			cache = new Cache<Long>(cacheSize);
 			//write BTree metadata
-			ByteBuffer buffer = ByteBuffer.allocate(13);
-			buffer.put((byte) k);	//cast k as byte since size is limited to 31
-			buffer.putInt(degree);
-			buffer.putLong(13);	//root pointer will always be 13
-			//byte[] array = null;
-			//buffer.put(array);
-			file.write(buffer.array());
+			extendedHeader = true;
+			headerSize = HEADER_SIZE;
+			nextFree = HEADER_SIZE;
+			stats = new Stats();
 			root = allocateNode();
 			root.writeNode();	//write root to file to allocate space, even though it will be empty
+			writeHeader();
 
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -123,21 +160,22 @@ public class BTree {
 	}
 
 	/**
-	 * Create a BTree object from a BTree File
+	 * Create a BTree object from a BTree File. The tree can be searched, or more
+	 * sequences can be inserted into it (call finalize() when finished).
 	 * @param file The RandomAccessFile which contains the BTree
 	 * @throws IOException If there is an error accessing the file
 	 */
 	public BTree(String filename) throws IOException {
 		this.file = new RandomAccessFile(filename,"rw");
-		file.seek(0);
-		k = file.readByte();
-		degree = file.readInt();
+		btreeFileName = filename;
+		gbkFileName = getGbkFileName(filename);
+		long rootPointer = readHeader();
 		
 		maxKeys = (2*this.degree) - 1;
 		minKeys = this.degree -1;
 		NODE_SIZE = 13+8*(2*degree+1)+12*(2*degree-1);
 		
-		root = retrieveNode(file.readLong());
+		root = retrieveNode(rootPointer);
 		
 		usingCache = false;
 	}
@@ -148,21 +186,365 @@ public class BTree {
 	 */
 	public BTree(String filename,int cacheSize) throws IOException {
 		this.file = new RandomAccessFile(filename,"rw");
-		file.seek(0);
-		k = file.readByte();
-		degree = file.readInt();
+		btreeFileName = filename;
+		gbkFileName = getGbkFileName(filename);
+		long rootPointer = readHeader();
 		
 		maxKeys = (2*this.degree) - 1;
 		minKeys = this.degree -1;
 		NODE_SIZE = 13+8*(2*degree+1)+12*(2*degree-1);
 		
-		root = retrieveNode(file.readLong());
+		root = retrieveNode(rootPointer);
 		
 		usingCache = true;
 		cache = new Cache<Long>(cacheSize);
 	}
 
 
+	/**
+	 * Write the BTree metadata at the start of the file. Files with an extended header
+	 * contain:
+	 *   k | 0x80 (1 byte), degree (4 bytes), root pointer (8 bytes),
+	 *   header size (4 bytes), next free pointer (8 bytes), flags (4 bytes),
+	 *   minimum count (4 bytes)
+	 * Files without one only contain the first three.
+	 */
+	private void writeHeader() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(extendedHeader ? 33 : LEGACY_HEADER_SIZE);
+		buffer.put((byte) (extendedHeader ? k|EXTENDED_HEADER : k));	//cast k as byte since size is limited to 31
+		buffer.putInt(degree);
+		buffer.putLong(root.getCurrentPointer());
+		if (extendedHeader) {
+			buffer.putInt(headerSize);
+			buffer.putLong(nextFree);
+			buffer.putInt((copyOnWrite ? COPY_ON_WRITE : 0) | (minCount > 0 ? MIN_COUNT : 0));
+			buffer.putInt(minCount);
+		}
+		file.seek(0);
+		file.write(buffer.array());
+		if (extendedHeader && stats != null) {
+			file.seek(STATS_OFFSET);
+			file.write(stats.toBytes());
+		}
+	}
+
+	/**
+	 * Read the BTree metadata from the start of the file. For a copy-on-write file, the
+	 * root and the moved nodes of the last checkpoint are used instead of the root in the
+	 * header, so a build that is still running is seen as it was at that checkpoint.
+	 * @return The root pointer
+	 */
+	private long readHeader() throws IOException {
+		file.seek(0);
+		byte first = file.readByte();
+		extendedHeader = (first & EXTENDED_HEADER) != 0;
+		k = first & ~EXTENDED_HEADER;
+		degree = file.readInt();
+		long rootPointer = file.readLong();
+		if (extendedHeader) {
+			headerSize = file.readInt();
+			nextFree = file.readLong();
+			int flags = file.readInt();
+			copyOnWrite = (flags & COPY_ON_WRITE) != 0;
+			minCount = file.readInt();
+			if ((flags & MIN_COUNT) == 0)
+				minCount = 0;
+			byte[] block = new byte[Stats.SIZE];
+			file.seek(STATS_OFFSET);
+			file.readFully(block);
+			stats = Stats.fromBytes(block);
+		}
+		else {
+			headerSize = LEGACY_HEADER_SIZE;
+			nextFree = file.length();
+		}
+		if (copyOnWrite) {
+			ByteBuffer record = readCheckpoint();
+			if (record != null)
+				rootPointer = loadSnapshot(record);
+		}
+		return rootPointer;
+	}
+
+	/**
+	 * Reserve space for a new node. The file is grown a whole extent at a time, so
+	 * most allocations only move the next free pointer.
+	 * @return The pointer of the new node
+	 */
+	private long allocatePointer() throws IOException {
+		long pointer = nextFree;
+		nextFree += NODE_SIZE;
+		long length = file.length();
+		if (nextFree > length)
+			file.setLength(Math.max(nextFree, length+EXTENT_SIZE));
+		return pointer;
+	}
+
+	/**
+	 * Start recording checkpoints. From now on, the first time a node that existed at the
+	 * last checkpoint is overwritten, its old contents are saved to "<btree file>.journal",
+	 * so that resumeFromCheckpoint() can undo every change made after the checkpoint.
+	 * @throws IOException If the journal cannot be created
+	 */
+	public void enableCheckpoints() throws IOException {
+		if (!extendedHeader)
+			throw new IOException("Checkpoints need a BTree file with an extended header");
+		journal = new RandomAccessFile(btreeFileName+".journal", "rw");
+		journaled = new HashSet<Long>();
+		resetJournal();
+	}
+
+	/**
+	 * Start recording checkpoints by shadow paging instead of a journal. A node that
+	 * existed at the last checkpoint is never overwritten: its new contents are written to
+	 * a new place at the end of the file, and the BTree keeps a table of where each moved
+	 * node is. A checkpoint writes that table and then publishes it with the root, so
+	 * anyone who opens the file (in this process or another) gets the BTree exactly as it
+	 * was at the last checkpoint, and the build is never blocked by them. Resuming only
+	 * needs the last checkpoint. A first checkpoint is recorded right away.
+	 * @throws IOException If the file cannot be written
+	 */
+	public void enableCopyOnWrite() throws IOException {
+		if (!extendedHeader)
+			throw new IOException("Checkpoints need a BTree file with an extended header");
+		copyOnWrite = true;
+		writeHeader();
+		checkpoint(new byte[0]);
+	}
+
+	/**
+	 * Write every change to disk and atomically record the root, the next free pointer and
+	 * the caller's state (e.g. how far through its input it is). The record is written to
+	 * the older of two slots in the header and protected by a checksum, so a crash while
+	 * writing it leaves the previous checkpoint intact.
+	 * @param state What the caller needs to continue from this point (at most 256 bytes)
+	 * @throws IOException If the BTree file or the journal cannot be written
+	 */
+	public void checkpoint(byte[] state) throws IOException {
+		root.writeNode();	//the root can have changes that only exist in memory
+		writeHeader();		//so readers see the statistics of about this checkpoint
+		long tablePointer = copyOnWrite ? writeRelocationTable() : 0;
+		file.getChannel().force(false);
+
+		ByteBuffer record = ByteBuffer.allocate(CHECKPOINT_SIZE);
+		record.putLong(checkpointSequence+1);
+		record.putLong(root.getCurrentPointer());
+		record.putLong(nextFree);
+		record.putInt(state.length);
+		record.put(state);
+		if (copyOnWrite) {
+			record.putLong(tablePointer);
+			record.putLong(relocated.size());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+		file.seek(CHECKPOINT_SLOTS[(int) ((checkpointSequence+1)%2)]);
+		file.write(record.array());
+		file.getChannel().force(false);
+
+		checkpointSequence++;
+		if (copyOnWrite)
+			checkpointNextFree = nextFree;
+		else
+			resetJournal();
+	}
+
+	/**
+	 * Write the table of moved nodes (original pointer, current pointer) to new space at
+	 * the end of the file.
+	 * @return Where the table starts
+	 */
+	private long writeRelocationTable() throws IOException {
+		long tablePointer = nextFree;
+		for (long size=0; size<16L*relocated.size(); size+=NODE_SIZE)
+			allocatePointer();	//whole nodes, so nodes stay evenly spaced
+		FileChannel channel = file.getChannel();
+		ByteBuffer chunk = ByteBuffer.allocate(1<<16);
+		long position = tablePointer;
+		for (HashMap.Entry<Long,Long> entry : relocated.entrySet()) {
+			if (chunk.remaining() < 16) {
+				chunk.flip();
+				while (chunk.hasRemaining())
+					position += channel.write(chunk, position);
+				chunk.clear();
+			}
+			chunk.putLong(entry.getKey());
+			chunk.putLong(entry.getValue());
+		}
+		chunk.flip();
+		while (chunk.hasRemaining())
+			position += channel.write(chunk, position);
+		return tablePointer;
+	}
+
+	/**
+	 * Return the newest checkpoint record whose checksum is correct (null if there is none).
+	 */
+	private ByteBuffer readCheckpoint() throws IOException {
+		int extra = copyOnWrite ? 16 : 0;	//pointer and size of the table of moved nodes
+		ByteBuffer newest = null;
+		for (int slot : CHECKPOINT_SLOTS) {
+			byte[] record = new byte[CHECKPOINT_SIZE];
+			file.seek(slot);
+			file.readFully(record);
+			ByteBuffer buffer = ByteBuffer.wrap(record);
+			long sequence = buffer.getLong();
+			int stateLength = buffer.getInt(24);
+			if (sequence <= 0 || stateLength < 0 || stateLength > CHECKPOINT_SIZE-32-extra)
+				continue;
+			CRC32 crc = new CRC32();
+			crc.update(record, 0, 28+stateLength+extra);
+			if (buffer.getInt(28+stateLength+extra) != (int) crc.getValue())
+				continue;
+			if (newest == null || sequence > newest.getLong(0))
+				newest = buffer;
+		}
+		return newest;
+	}
+
+	/**
+	 * Go back to the BTree of a copy-on-write checkpoint: its next free pointer and its
+	 * table of moved nodes.
+	 * @return The root pointer of the checkpoint
+	 */
+	private long loadSnapshot(ByteBuffer record) throws IOException {
+		checkpointSequence = record.getLong(0);
+		nextFree = record.getLong(16);
+		checkpointNextFree = nextFree;
+		int stateLength = record.getInt(24);
+		long tablePointer = record.getLong(28+stateLength);
+		long tableSize = record.getLong(36+stateLength);
+
+		relocated.clear();
+		byte[] table = new byte[(int) (16*tableSize)];
+		file.seek(tablePointer);
+		file.readFully(table);
+		ByteBuffer entries = ByteBuffer.wrap(table);
+		for (long i=0; i<tableSize; i++)
+			relocated.put(entries.getLong(), entries.getLong());
+		return record.getLong(8);
+	}
+
+	/**
+	 * Return where a node is in the file: where it was moved to if it was moved by
+	 * copy-on-write, otherwise its own pointer.
+	 */
+	private long location(long pointer) {
+		if (relocated.isEmpty())
+			return pointer;
+		Long moved = relocated.get(pointer);
+		return (moved != null) ? moved : pointer;
+	}
+
+	/**
+	 * Return where a node should be written. With copy-on-write, a node that is part of
+	 * the last checkpoint is moved to new space first.
+	 */
+	private long writeLocation(long pointer) throws IOException {
+		long location = location(pointer);
+		if (copyOnWrite && location < checkpointNextFree) {
+			location = allocatePointer();
+			relocated.put(pointer, location);
+		}
+		return location;
+	}
+
+	/**
+	 * Undo every change made after the last checkpoint and continue from it. Checkpoints
+	 * stay enabled.
+	 * @return The state that was passed to checkpoint()
+	 * @throws IOException If the file has no checkpoint or cannot be accessed
+	 */
+	public byte[] resumeFromCheckpoint() throws IOException {
+		if (!extendedHeader)
+			throw new IOException("Checkpoints need a BTree file with an extended header");
+
+		//find the newest valid checkpoint
+		ByteBuffer newest = readCheckpoint();
+		if (newest == null || (copyOnWrite && newest.getInt(24) == 0))
+			throw new IOException(btreeFileName+" has no checkpoint to resume from");
+		if (copyOnWrite) {
+			//the nodes of the checkpoint were never overwritten, so there is nothing to undo
+			root = retrieveNode(loadSnapshot(newest));
+			if (stats != null)
+				stats = computeStats();	//the statistics in the header can be from after the checkpoint
+			byte[] state = new byte[newest.getInt(24)];
+			newest.position(28);
+			newest.get(state);
+			return state;
+		}
+		checkpointSequence = newest.getLong(0);
+		long rootPointer = newest.getLong(8);
+		nextFree = newest.getLong(16);
+		byte[] state = new byte[newest.getInt(24)];
+		newest.position(28);
+		newest.get(state);
+
+		//put back the old contents of the nodes changed after that checkpoint; a journal
+		//left over from an earlier checkpoint no longer applies
+		File journalFile = new File(btreeFileName+".journal");
+		if (journalFile.exists()) {
+			try (RandomAccessFile old = new RandomAccessFile(journalFile, "r")) {
+				if (old.length() >= 8 && old.readLong() == checkpointSequence) {
+					byte[] contents = new byte[NODE_SIZE];
+					while (old.getFilePointer()+8+NODE_SIZE <= old.length()) {
+						long pointer = old.readLong();
+						old.readFully(contents);
+						file.seek(pointer);
+						file.write(contents);
+					}
+				}
+			}
+			file.getChannel().force(false);
+		}
+
+		root = retrieveNode(rootPointer);
+		if (stats != null)
+			stats = computeStats();	//the statistics in the header can be from after the checkpoint
+		writeHeader();
+		journal = new RandomAccessFile(journalFile, "rw");
+		journaled = new HashSet<Long>();
+		resetJournal();
+		return state;
+	}
+
+	/**
+	 * Empty the journal after a checkpoint.
+	 */
+	private void resetJournal() throws IOException {
+		journal.setLength(0);
+		journal.writeLong(checkpointSequence);
+		journal.getChannel().force(false);
+		journaled.clear();
+		checkpointNextFree = nextFree;
+	}
+
+	/**
+	 * Save the current contents of a node to the journal before it is overwritten for the
+	 * first time since the last checkpoint. The journal is forced to disk first, so the
+	 * old contents are never lost.
+	 */
+	private void journalNode(long pointer) throws IOException {
+		if (journal == null || pointer >= checkpointNextFree || !journaled.add(pointer))
+			return;
+		byte[] contents = new byte[NODE_SIZE];
+		file.seek(pointer);
+		file.readFully(contents);
+		journal.writeLong(pointer);
+		journal.write(contents);
+		journal.getChannel().force(false);
+	}
+
+	/**
+	 * Return the name of the gbk file that a BTree file was built from, based on
+	 * the "<gbk file>.btree.data.<k>.<degree>" naming convention.
+	 */
+	static String getGbkFileName(String btreeFileName) {
+		int index = btreeFileName.lastIndexOf(".btree.data.");
+		return (index < 0) ? btreeFileName : btreeFileName.substring(0, index);
+	}
+
 	/**
 	 * Insert a sequence into the BTree
 	 * @param sequence
@@ -171,9 +553,20 @@ public class BTree {
 	public void BTreeInsert(String sequence) throws IOException {
 		if(sequence.contains("n"))
 			return;
-		TreeObject newObject = new TreeObject(sequence, k);
+		BTreeInsert(new TreeObject(sequence, k).getKey());
+	}
+
+	/**
+	 * Insert a sequence, given as its key (binary sequence), into the BTree
+	 * @param key
+	 * @throws IOException 
+	 */
+	public void BTreeInsert(long key) throws IOException {
+		TreeObject newObject = new TreeObject(key, k);
 		BTreeNode r = root;
 		BTreeNode foundNode = null;
+		if (stats != null)
+			stats.total++;
 		if(usingCache)
 		{
 			//Two cases: one where the object exists within the cache, one where it doesn't
@@ -186,10 +579,13 @@ public class BTree {
 				for(int i=0;i<foundNode.getNumKeys();i++) 
 				{
 					//Iterate through the list of keys until we find the sequence
-					if(foundNode.getTreeObject(i).getSequence().equals(sequence))
+					if(foundNode.getTreeObject(i).getKey() == newObject.getKey())
 					{
 						foundNode.getTreeObject(i).incrementFrequency();
+						countRepeat(foundNode.getTreeObject(i));
 						foundNode.writeNode(); //Write back to file
+						if (foundNode.getCurrentPointer() == root.getCurrentPointer())
+							root = foundNode;	//keep the in-memory root up to date, since finalize() writes it
 						break;
 					}
 				}
@@ -210,6 +606,8 @@ public class BTree {
 			//CASE 2: Does not exist in the cache
 			BTreeNode s = allocateNode();
 			root = s;
+			if (stats != null)
+				stats.height++;
 			s.setLeaf(false);
 			s.addChild(0,r.getCurrentPointer());
 			BTreeSplit(s, 0, r);
@@ -275,6 +673,7 @@ public class BTree {
 		//check for empty node (should only happen when inserting to root at beginning
 		if (i==-1) {
 			node.addTreeObject(object, 0);
+			countNew(object.getKey());
 			if(usingCache)
 			{
 				Long nodePointer = new Long(node.getCurrentPointer());
@@ -291,9 +690,11 @@ public class BTree {
 			//if key already exists, increment frequency. else, add object into node
 			if (i!=0 && object.getKey() == node.getTreeObject(i-1).getKey()) {
 				node.getTreeObject(i-1).incrementFrequency();
+				countRepeat(node.getTreeObject(i-1));
 			}
 			else {			
 				node.addTreeObject(object, i);
+				countNew(object.getKey());
 			}
 			
 			//disk-write(node);
@@ -304,6 +705,7 @@ public class BTree {
 			}
 			if(i!=0 && object.getKey() == node.getTreeObject(i-1).getKey()) {
 				node.getTreeObject(i-1).incrementFrequency();
+				countRepeat(node.getTreeObject(i-1));
 				node.writeNode();
 				if(usingCache)
 				{
@@ -324,6 +726,7 @@ public class BTree {
 				}
 				else if (object.getKey() == node.getTreeObject(i).getKey()) {
 					node.getTreeObject(i).incrementFrequency();
+					countRepeat(node.getTreeObject(i));
 					node.writeNode();
 					if(usingCache)
 					{
@@ -342,16 +745,361 @@ public class BTree {
 		}
 	}
 
+	/**
+	 * Count a sequence that was just added to the tree.
+	 */
+	private void countNew(long key) {
+		if (stats != null)
+			stats.add(key, 1);
+	}
+
+	/**
+	 * Count another occurrence of a sequence already in the tree: its frequency may have
+	 * moved into the next histogram bucket.
+	 */
+	private void countRepeat(TreeObject object) {
+		int frequency = object.getFrequency();
+		if (stats != null && Integer.bitCount(frequency) == 1) {
+			int bucket = 31-Integer.numberOfLeadingZeros(frequency);
+			stats.histogram[bucket-1]--;
+			stats.histogram[bucket]++;
+		}
+	}
+
 	/**
 	 * Finalizes the BTree file. ALWAYS call this method when finished with
 	 * BTree operations.
 	 * @throws IOException If RandomAccessFile cannot be accessed.
 	 */
 	public void finalize() throws IOException {
-		//write the root to file, then close file to prevent further changes
+		if (!file.getChannel().isOpen())
+			return;	//already closed (the garbage collector also calls finalize() on unused BTrees)
+		if (copyOnWrite) {
+			if (nodeWrites == 0)
+				return;	//only read, e.g. by a reader of a build that is still running
+			checkpoint(new byte[0]);	//publish the finished BTree; there is nothing to resume
+		}
+		//write the root to file, then record it and give back the unused part of the last extent
 		root.writeNode();
-		file.seek(5);
-		file.writeLong(root.getCurrentPointer());
+		writeHeader();
+		file.setLength(nextFree);
+		stopTrace();
+
+		//the build is complete, so there is nothing left to resume
+		if (journal != null) {
+			file.seek(CHECKPOINT_SLOTS[0]);
+			file.write(new byte[CHECKPOINT_SLOTS[1]+CHECKPOINT_SIZE-CHECKPOINT_SLOTS[0]]);
+			journal.close();
+			journal = null;
+			new File(btreeFileName+".journal").delete();
+		}
+	}
+
+	/**
+	 * Closes the BTree file.
+	 * @throws IOException If RandomAccessFile cannot be closed.
+	 */
+	public void close() throws IOException {
+		stopTrace();
+		file.close();
+	}
+
+	/**
+	 * Start logging every node read and write to a trace file, which GeneBankTraceReplay
+	 * can use to work out the hit rate of any cache size. The file starts with TRACE_MAGIC,
+	 * followed by one int per access: the node's number (its position among the nodes in
+	 * the file) shifted left by one, with the lowest bit set for writes.
+	 * @param traceFileName The trace file to create
+	 * @throws IOException If the trace file cannot be created
+	 */
+	public void startTrace(String traceFileName) throws IOException {
+		stopTrace();
+		trace = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(traceFileName), 1<<16));
+		trace.writeInt(TRACE_MAGIC);
+	}
+
+	/**
+	 * Stop logging node accesses and close the trace file.
+	 * @throws IOException If the trace file cannot be written
+	 */
+	public void stopTrace() throws IOException {
+		if (trace != null) {
+			trace.close();
+			trace = null;
+		}
+	}
+
+	/**
+	 * Log one node access. If the trace cannot be written, tracing stops.
+	 */
+	private void traceAccess(long pointer, boolean write) {
+		try {
+			trace.writeInt((int) ((pointer-headerSize)/NODE_SIZE)<<1 | (write?1:0));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Error: Failed to write to the trace file.");
+			trace = null;
+		}
+	}
+
+	/**
+	 * Write a compacted copy of this (finalized) BTree to a new file. Only the nodes that
+	 * can be reached from the root are copied, so space left behind by superseded nodes is
+	 * dropped. The nodes are stored either in breadth-first order or in van Emde Boas order
+	 * (where every subtree of about half the height is stored contiguously), and every
+	 * pointer is updated. The root is stored first.
+	 * @param outputFileName The file to write the compacted BTree to
+	 * @param vanEmdeBoas True for van Emde Boas order, false for breadth-first order
+	 * @throws IOException If there is an error accessing either file
+	 */
+	public void compact(String outputFileName, boolean vanEmdeBoas) throws IOException {
+		byte[] header = new byte[headerSize];
+		file.seek(0);
+		file.readFully(header);
+		ByteBuffer.wrap(header).putLong(5, headerSize);	//the root is stored right after the metadata
+		if (extendedHeader) {
+			//the copy has no moved nodes and no checkpoints
+			ByteBuffer.wrap(header).putInt(25, (minCount > 0) ? MIN_COUNT : 0);
+			Arrays.fill(header, CHECKPOINT_SLOTS[0], CHECKPOINT_SLOTS[1]+CHECKPOINT_SIZE, (byte) 0);
+		}
+
+		long end;
+		try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName), 1<<16)) {
+			out.write(header);
+			if (vanEmdeBoas) {
+				ArrayList<Long> order = new ArrayList<Long>();
+				vanEmdeBoasOrder(root.getCurrentPointer(), getHeight(), order);
+
+				HashMap<Long,Long> newPointers = new HashMap<Long,Long>();
+				for (int i=0;i<order.size();i++)
+					newPointers.put(order.get(i), headerSize+(long) i*NODE_SIZE);
+				for (long pointer : order) {
+					BTreeNode node = retrieveNode(pointer);
+					node.setCurrent(newPointers.get(pointer));
+					for (int i=0;i<node.getNumChildren();i++)
+						node.children.set(i, newPointers.get(node.getChild(i)));
+					out.write(node.toBytes());
+				}
+				end = headerSize+(long) order.size()*NODE_SIZE;
+			}
+			else {
+				//in breadth-first order a node's new position is the order it was queued in,
+				//so the copy can be made in a single pass
+				ArrayDeque<Long> queue = new ArrayDeque<Long>();
+				queue.add(root.getCurrentPointer());
+				long queued = 1;
+				long next = headerSize;
+				while (!queue.isEmpty()) {
+					BTreeNode node = retrieveNode(queue.poll());
+					node.setCurrent(next);
+					next += NODE_SIZE;
+					for (int i=0;i<node.getNumChildren();i++) {
+						queue.add(node.getChild(i));
+						node.children.set(i, headerSize+queued*NODE_SIZE);
+						queued++;
+					}
+					out.write(node.toBytes());
+				}
+				end = next;
+			}
+		}
+
+		if (extendedHeader) {
+			try (RandomAccessFile output = new RandomAccessFile(outputFileName, "rw")) {
+				output.seek(17);
+				output.writeLong(end);	//next free pointer
+			}
+		}
+	}
+
+	/**
+	 * Return the number of levels in the BTree.
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public int getHeight() throws IOException {
+		int height = 1;
+		BTreeNode node = root;
+		while (!node.isLeaf()) {
+			node = retrieveNode(node.getChild(0));
+			height++;
+		}
+		return height;
+	}
+
+	/**
+	 * Record that only sequences with at least the given frequency were inserted, so
+	 * searches can tell that a sequence that is not found may still occur less often.
+	 * Written with the header by finalize().
+	 * @param minCount The smallest frequency kept (0 or 1 if every sequence was kept)
+	 */
+	public void setMinCount(int minCount) {
+		if (!extendedHeader)
+			throw new IllegalStateException("Only files with an extended header can record a minimum count");
+		this.minCount = (minCount > 1) ? minCount : 0;
+	}
+
+	/**
+	 * Return the smallest frequency kept in the BTree (0 if every sequence was kept).
+	 */
+	public int getMinCount() {
+		return minCount;
+	}
+
+	/**
+	 * Return the statistics kept in the header, without reading any nodes (null for
+	 * files written before the statistics block existed; see computeStats()).
+	 */
+	public Stats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Work out the statistics by reading every node of the BTree.
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public Stats computeStats() throws IOException {
+		Stats computed = new Stats();
+		computed.height = getHeight();
+		ArrayDeque<Long> queue = new ArrayDeque<Long>();
+		queue.add(root.getCurrentPointer());
+		while (!queue.isEmpty()) {
+			long pointer = queue.poll();
+			BTreeNode node = (pointer == root.getCurrentPointer()) ? root : retrieveNode(pointer);
+			computed.nodes++;
+			for (int i=0;i<node.getNumKeys();i++) {
+				TreeObject object = node.getTreeObject(i);
+				computed.add(object.getKey(), object.getFrequency());
+				computed.total += object.getFrequency();
+			}
+			for (int i=0;i<node.getNumChildren();i++)
+				queue.add(node.getChild(i));
+		}
+		return computed;
+	}
+
+	/**
+	 * Count how many distinct sequences occur with each frequency (the k-mer spectrum).
+	 * Every node of a BTree file is live, so the node area is read from start to end in
+	 * large sequential chunks, split into one contiguous range of nodes per thread, and
+	 * only the frequencies are read from each node. Copy-on-write files can still contain
+	 * old copies of moved nodes, so those are walked in key order instead.
+	 * @param threads The number of threads to read with
+	 * @return spectrum[f] is the number of distinct sequences with frequency f
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public long[] frequencySpectrum(int threads) throws IOException {
+		if (threads < 1)
+			throw new IllegalArgumentException("The number of threads must be positive");
+		if (copyOnWrite) {
+			long[] spectrum = new long[1];
+			TreeIterator iterator = iterator();
+			for (TreeObject object = iterator.next(); object != null; object = iterator.next())
+				spectrum = countFrequency(spectrum, object.getFrequency());
+			return spectrum;
+		}
+
+		long nodes = (nextFree-headerSize)/NODE_SIZE;
+		long[][] spectra = new long[threads][];
+		IOException[] failures = new IOException[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t=0;t<threads;t++) {
+			int thread = t;
+			long first = nodes*t/threads, last = nodes*(t+1)/threads;
+			workers[t] = new Thread(() -> {
+				try {
+					spectra[thread] = scanFrequencies(first, last);
+				}
+				catch (IOException e) {
+					failures[thread] = e;
+				}
+			}, "BTree-spectrum-"+t);
+			workers[t].start();
+		}
+
+		long[] spectrum = new long[1];
+		for (int t=0;t<threads;t++) {
+			try {
+				workers[t].join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while counting frequencies", e);
+			}
+			if (failures[t] != null)
+				throw failures[t];
+			if (spectra[t].length > spectrum.length)
+				spectrum = Arrays.copyOf(spectrum, spectra[t].length);
+			for (int f=0;f<spectra[t].length;f++)
+				spectrum[f] += spectra[t][f];
+		}
+		return spectrum;
+	}
+
+	/**
+	 * Helper method for frequencySpectrum. Counts the frequencies in the nodes numbered
+	 * [first, last) in file order. Positional reads are used, so threads can share the file.
+	 */
+	private long[] scanFrequencies(long first, long last) throws IOException {
+		FileChannel channel = file.getChannel();
+		int nodesPerRead = Math.max(1, EXTENT_SIZE/NODE_SIZE);
+		ByteBuffer buffer = ByteBuffer.allocate(nodesPerRead*NODE_SIZE);
+		int objects = 21+16*degree;	//leaf flag, key count, current and parent pointers, children
+		long[] spectrum = new long[1];
+		for (long node=first;node<last;node+=nodesPerRead) {
+			int count = (int) Math.min(nodesPerRead, last-node);
+			buffer.clear().limit(count*NODE_SIZE);
+			long position = headerSize+node*NODE_SIZE;
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position+buffer.position()) < 0)
+					throw new IOException("The BTree file ends in the middle of a node");
+			}
+			for (int i=0;i<count;i++) {
+				int start = i*NODE_SIZE;
+				int numKeys = buffer.getInt(start+1);
+				for (int j=0;j<numKeys;j++)
+					spectrum = countFrequency(spectrum, buffer.getInt(start+objects+12*j+8));
+			}
+		}
+		return spectrum;
+	}
+
+	/**
+	 * Count one sequence with the given frequency, growing the spectrum if needed.
+	 */
+	private static long[] countFrequency(long[] spectrum, int frequency) {
+		if (frequency >= spectrum.length)
+			spectrum = Arrays.copyOf(spectrum, Math.max(frequency+1, 2*spectrum.length));
+		spectrum[frequency]++;
+		return spectrum;
+	}
+
+	/**
+	 * Helper method for compact. Adds the nodes of the subtree with the given root and
+	 * height to order, in van Emde Boas order: the top half of the subtree first, then
+	 * each of the subtrees hanging below it, from left to right.
+	 */
+	private void vanEmdeBoasOrder(long pointer, int height, ArrayList<Long> order) throws IOException {
+		if (height == 1) {
+			order.add(pointer);
+			return;
+		}
+		int top = height/2;
+		vanEmdeBoasOrder(pointer, top, order);
+
+		//find the roots of the bottom subtrees, which are top levels below this node
+		ArrayList<Long> level = new ArrayList<Long>();
+		level.add(pointer);
+		for (int depth=0;depth<top;depth++) {
+			ArrayList<Long> below = new ArrayList<Long>();
+			for (long p : level) {
+				BTreeNode node = retrieveNode(p);
+				for (int i=0;i<node.getNumChildren();i++)
+					below.add(node.getChild(i));
+			}
+			level = below;
+		}
+		for (long p : level)
+			vanEmdeBoasOrder(p, height-top, order);
 	}
 
 	/**
@@ -425,12 +1173,43 @@ public class BTree {
 	 * @throws IOException If there is an error accessing the file
 	 */
 	private BTreeNode retrieveNode(long pointer) throws IOException {
-		BTreeNode node = new BTreeNode();
-		file.seek(pointer);
+		if (trace != null)
+			traceAccess(pointer, false);
+		return loadNode(pointer);
+	}
+
+	/**
+	 * Read a node from the file without recording it in the trace. The cache uses this
+	 * to re-read the nodes it holds while looking for a key, which are not accesses of
+	 * the BTree itself.
+	 * @param pointer The pointer of the node
+	 */
+	private BTreeNode loadNode(long pointer) throws IOException {
+		nodeReads++;
+		file.seek(location(pointer));
 		byte[] array = new byte[NODE_SIZE];
 		file.read(array);
 
-		ByteBuffer buffer = ByteBuffer.wrap(array);
+		return decodeNode(pointer, ByteBuffer.wrap(array));
+	}
+
+	/**
+	 * Read a node from the file, exactly as a search does. Package-private so that
+	 * GeneBankBenchmark can measure node reads on their own.
+	 * @param pointer The pointer of the node
+	 */
+	BTreeNode readNode(long pointer) throws IOException {
+		return retrieveNode(pointer);
+	}
+
+	/**
+	 * Build a node from its on-disk representation.
+	 * @param pointer The location the node was read from
+	 * @param buffer Buffer positioned at the start of the node
+	 * @return The decoded node
+	 */
+	private BTreeNode decodeNode(long pointer, ByteBuffer buffer) {
+		BTreeNode node = new BTreeNode(pointer);
 
 		byte leaf = buffer.get();
 		int numKeys = buffer.getInt();
@@ -469,15 +1248,24 @@ public class BTree {
 	 * @throws IOException 
 	 */
 	public int BTreeSearch(BTreeNode searchNode, String sequence) throws IOException {
-		TreeObject compareObject = new TreeObject(sequence, k);
-		long key = compareObject.getKey();
+		return BTreeSearch(searchNode, new TreeObject(sequence, k).getKey());
+	}
+
+	/**
+	 * Searches for a sequence, given as its key (binary sequence), within a BTree
+	 * and returns the frequency of the sequence
+	 * @param key
+	 * @return
+	 * @throws IOException 
+	 */
+	public int BTreeSearch(BTreeNode searchNode, long key) throws IOException {
 		int i = 0;
 		
 		//Two cases: one where the object exists within the cache and one where it does not
 		if(usingCache)
 		{
 			//CASE 1: Exists within the cache
-			BTreeNode foundNode = cache.find(compareObject.getKey());
+			BTreeNode foundNode = cache.find(key);
 			if(foundNode != null)
 			{
 				//Step 1: Get the frequency
@@ -485,7 +1273,7 @@ public class BTree {
 				for(int j=0;j<foundNode.getNumKeys();j++) 
 				{
 					//Iterate through the list of keys until we find the sequence
-					if(foundNode.getTreeObject(j).getSequence().equals(sequence))
+					if(foundNode.getTreeObject(j).getKey() == key)
 					{
 						frequency = foundNode.getTreeObject(j).getFrequency();
 						break;
@@ -518,14 +1306,253 @@ public class BTree {
 			return 0;
 		} else {
 			BTreeNode newSearchNode = retrieveNode(searchNode.getChild(i));
-			return BTreeSearch(newSearchNode, sequence);
+			return BTreeSearch(newSearchNode, key);
 		}
 	}
 	
+	/**
+	 * Searches the whole BTree for a sequence, given as its key, and returns its frequency.
+	 */
+	public int search(long key) throws IOException {
+		return BTreeSearch(root, key);
+	}
+
+	/**
+	 * Searches for many keys at once. Instead of blocking on one node read at a time,
+	 * the children needed by the pending queries are read asynchronously, with at most
+	 * queueDepth reads in flight, and each node is searched as soon as its read completes.
+	 * Queries that need the same node share a single read. The cache is not used.
+	 * @param keys The keys (binary sequences) to search for
+	 * @param queueDepth The maximum number of node reads in flight
+	 * @return The frequency of each key (0 if not found), in the same order as keys
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public int[] BTreeBatchSearch(long[] keys, int queueDepth) throws IOException {
+		int[] frequencies = new int[keys.length];
+		HashMap<Long,ArrayList<Integer>> waiting = new HashMap<Long,ArrayList<Integer>>();	//queries waiting on each node
+		ArrayDeque<Long> unread = new ArrayDeque<Long>();	//nodes that have not been requested yet
+		LinkedBlockingQueue<NodeRead> completed = new LinkedBlockingQueue<NodeRead>();
+		int inFlight = 0;
+
+		ArrayList<Integer> queries = new ArrayList<Integer>(keys.length);
+		for (int i=0;i<keys.length;i++)
+			queries.add(i);
+		batchSearchNode(root, queries, keys, frequencies, waiting, unread);
+
+		try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(Paths.get(btreeFileName), StandardOpenOption.READ)) {
+			while (!waiting.isEmpty()) {
+				while (inFlight < queueDepth && !unread.isEmpty()) {
+					readNodeAsync(channel, unread.poll(), completed);
+					inFlight++;
+				}
+				NodeRead read = completed.take();
+				inFlight--;
+				if (read.error != null)
+					throw new IOException("Failed to read node at "+read.pointer, read.error);
+				BTreeNode node = decodeNode(read.pointer, read.buffer);
+				batchSearchNode(node, waiting.remove(read.pointer), keys, frequencies, waiting, unread);
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for a node read", e);
+		}
+		return frequencies;
+	}
+
+	/**
+	 * Helper method for BTreeBatchSearch. Searches one node for each of the given queries
+	 * and queues up the child each unresolved query has to visit next.
+	 */
+	private void batchSearchNode(BTreeNode node, ArrayList<Integer> queries, long[] keys, int[] frequencies,
+			HashMap<Long,ArrayList<Integer>> waiting, ArrayDeque<Long> unread) {
+		for (int q : queries) {
+			//binary search for the first key >= keys[q]
+			int low = 0, high = node.getNumKeys();
+			while (low < high) {
+				int mid = (low+high) >>> 1;
+				if (node.getTreeObject(mid).getKey() < keys[q])
+					low = mid+1;
+				else
+					high = mid;
+			}
+			if (low < node.getNumKeys() && node.getTreeObject(low).getKey() == keys[q]) {
+				frequencies[q] = node.getTreeObject(low).getFrequency();
+			}
+			else if (!node.isLeaf()) {
+				long child = node.getChild(low);
+				ArrayList<Integer> list = waiting.get(child);
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					waiting.put(child, list);
+					unread.add(child);
+				}
+				list.add(q);
+			}
+		}
+	}
+
+	/**
+	 * Start reading the node at the given pointer. When the read is finished (or fails),
+	 * the result is added to the completed queue.
+	 */
+	private void readNodeAsync(AsynchronousFileChannel channel, long pointer, LinkedBlockingQueue<NodeRead> completed) {
+		nodeReads++;
+		if (trace != null)
+			traceAccess(pointer, false);
+		ByteBuffer buffer = ByteBuffer.allocate(NODE_SIZE);
+		long location = location(pointer);
+		channel.read(buffer, location, buffer, new CompletionHandler<Integer,ByteBuffer>() {
+			public void completed(Integer result, ByteBuffer buf) {
+				if (result < 0 && buf.hasRemaining()) {
+					failed(new IOException("Unexpected end of BTree file"), buf);
+				}
+				else if (buf.hasRemaining()) {
+					channel.read(buf, location+buf.position(), buf, this);	//short read; get the rest
+				}
+				else {
+					buf.flip();
+					completed.add(new NodeRead(pointer, buf, null));
+				}
+			}
+			public void failed(Throwable e, ByteBuffer buf) {
+				completed.add(new NodeRead(pointer, null, e));
+			}
+		});
+	}
+
+	/**
+	 * The result of an asynchronous node read.
+	 */
+	private static class NodeRead {
+		final long pointer;
+		final ByteBuffer buffer;
+		final Throwable error;
+
+		NodeRead(long pointer, ByteBuffer buffer, Throwable error) {
+			this.pointer = pointer;
+			this.buffer = buffer;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Finds every sequence in the BTree that starts with the given prefix.
+	 * @param prefix The prefix to search for (at most k characters long)
+	 * @return The matching TreeObjects, in sorted order
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public ArrayList<TreeObject> prefixSearch(String prefix) throws IOException {
+		if (prefix.length() > k)
+			throw new IllegalArgumentException("The prefix cannot be longer than k");
+
+		//every sequence with this prefix lies between prefix+"aaa..." and prefix+"ttt..."
+		long low = 0;
+		int shift = 2*(k-prefix.length());
+		if (prefix.length() > 0)
+			low = new TreeObject(prefix, prefix.length()).getKey() << shift;
+		long high = low | ((1L<<shift)-1);
+
+		ArrayList<TreeObject> results = new ArrayList<TreeObject>();
+		rangeSearch(root, low, high, results);
+		return results;
+	}
+
+	/**
+	 * Helper method for prefixSearch that performs an in order traversal of
+	 * only the part of the tree which can contain keys between low and high.
+	 */
+	private void rangeSearch(BTreeNode x, long low, long high, ArrayList<TreeObject> results) throws IOException {
+		for (int i=0;i<x.getNumKeys();i++) {
+			long key = x.getTreeObject(i).getKey();
+			if (!x.isLeaf() && low < key)
+				rangeSearch(retrieveNode(x.getChild(i)), low, high, results);
+			if (key > high)
+				return;
+			if (key >= low)
+				results.add(x.getTreeObject(i));
+		}
+		if (!x.isLeaf())
+			rangeSearch(retrieveNode(x.getChild(x.getNumChildren()-1)), low, high, results);
+	}
+
+	/**
+	 * Return an iterator over the TreeObjects of the BTree in sorted order.
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public TreeIterator iterator() throws IOException {
+		return new TreeIterator();
+	}
+
+	/**
+	 * Return an iterator over the TreeObjects of the BTree in sorted order, starting at
+	 * the first TreeObject whose key is at least the given key.
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public TreeIterator iterator(long fromKey) throws IOException {
+		return new TreeIterator(fromKey);
+	}
+
+	/**
+	 * Return a bulk loader which replaces the contents of this (new, empty) BTree with
+	 * TreeObjects supplied in sorted order.
+	 * @throws IOException If there is an error accessing the file
+	 */
+	public BulkLoader bulkLoader() throws IOException {
+		return new BulkLoader();
+	}
+
 	public BTreeNode getRoot() {
 		return root;
 	}
 
+	/**
+	 * Return the sequence length of the BTree.
+	 */
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * Return the degree of the BTree.
+	 */
+	public int getDegree() {
+		return degree;
+	}
+
+	/**
+	 * Return the name of the BTree file.
+	 */
+	public String getFileName() {
+		return btreeFileName;
+	}
+
+	/**
+	 * Return the number of nodes read from the file so far.
+	 */
+	public long getNodeReads() {
+		return nodeReads;
+	}
+
+	/**
+	 * Return the number of nodes written to the file so far.
+	 */
+	public long getNodeWrites() {
+		return nodeWrites;
+	}
+
+	/**
+	 * Return the number of cache lookups that found the sequence.
+	 */
+	public long getCacheHits() {
+		return cacheHits;
+	}
+
+	/**
+	 * Return the number of cache lookups that did not find the sequence.
+	 */
+	public long getCacheMisses() {
+		return cacheMisses;
+	}
+
 	
 
 /* ****** B-TREE NODE ************************************************************************ */
@@ -553,8 +1580,23 @@ public class BTree {
 			children = new ArrayList<Long>();
 			leaf = true;
 			full = false;
-			currentNode = file.length();
-			this.writeNode();
+			currentNode = allocatePointer();	//the node is written once it has contents
+			if (stats != null)
+				stats.nodes++;
+		}
+
+		/**
+		 * Constructor for a BTree node that already exists in the file at the
+		 * given pointer. Nothing is written; the caller fills in the contents.
+		 * @param pointer The location of the node in the BTree file
+		 */
+		private BTreeNode(long pointer)
+		{
+			BtreeNode = new ArrayList<TreeObject>();
+			children = new ArrayList<Long>();
+			leaf = true;
+			full = false;
+			currentNode = pointer;
 		}
 		/**
 		 * Adds a TreeObject to the node
@@ -655,52 +1697,319 @@ public class BTree {
 		}
 
 		/**
-		 * Write node to the BTree file. This method should ALWAYS be called after making
-		 * changes to a node
+		 * Return the on-disk representation of this node.
 		 */
-		public void writeNode() {
+		private byte[] toBytes() {
 			ByteBuffer buffer = ByteBuffer.allocate(NODE_SIZE);	//metadata + parent/child pointers + objects
 
-			try {
-				//put metadata in buffer
-				buffer.put((byte) (leaf?1:0));
-				buffer.putInt(BtreeNode.size());
-				buffer.putLong(currentNode);
-
-				//put pointers in buffer
-				buffer.putLong(parent);
-				for (int i=0;i<2*degree;i++) {
-					if (i<children.size())
-						buffer.putLong(children.get(i));
-					else
-						buffer.putLong((long) 0);
-				}
+			//put metadata in buffer
+			buffer.put((byte) (leaf?1:0));
+			buffer.putInt(BtreeNode.size());
+			buffer.putLong(currentNode);
 
-				//put objects in buffer
-				for (int i=0;i<2*degree-1;i++) {
-					if (i<BtreeNode.size()) {
-						buffer.putLong(BtreeNode.get(i).getKey());
-						buffer.putInt(BtreeNode.get(i).getFrequency());
-					}
-					else {
-						buffer.putLong((long) 0);
-						buffer.putInt(0);
-					}
+			//put pointers in buffer
+			buffer.putLong(parent);
+			for (int i=0;i<2*degree;i++) {
+				if (i<children.size())
+					buffer.putLong(children.get(i));
+				else
+					buffer.putLong((long) 0);
+			}
+
+			//put objects in buffer
+			for (int i=0;i<2*degree-1;i++) {
+				if (i<BtreeNode.size()) {
+					buffer.putLong(BtreeNode.get(i).getKey());
+					buffer.putInt(BtreeNode.get(i).getFrequency());
+				}
+				else {
+					buffer.putLong((long) 0);
+					buffer.putInt(0);
 				}
+			}
+			return buffer.array();
+		}
 
+		/**
+		 * Write node to the BTree file. This method should ALWAYS be called after making
+		 * changes to a node
+		 */
+		public void writeNode() {
+			try {
 				//write buffer's contents to file		
-				file.seek(currentNode);
-				//byte[] array = null;
-				buffer.flip();
-				//buffer.put(array);
-				//file.write(array);
-				file.write(buffer.array());
+				journalNode(currentNode);
+				nodeWrites++;
+				if (trace != null)
+					traceAccess(currentNode, true);
+				file.seek(writeLocation(currentNode));
+				file.write(toBytes());
 			} catch (IOException e) {
 				e.printStackTrace();
 				System.out.println("Error: Failed to write node to file.");
 			}			
 		}
 	}
+/* ****** STATISTICS ************************************************************************ */
+
+	/**
+	 * Counts that describe the whole BTree, kept in the extended header so they can be
+	 * read without a traversal. The histogram counts the distinct sequences by frequency:
+	 * bucket b holds those whose frequency is from 2^b to 2^(b+1)-1.
+	 *
+	 * Block layout (at STATS_OFFSET):
+	 *   magic "GBST" (4 bytes), height (4 bytes), distinct sequences (8 bytes),
+	 *   total sequences (8 bytes), nodes (8 bytes), smallest key (8 bytes),
+	 *   largest key (8 bytes), then HISTOGRAM_BUCKETS bucket counts (8 bytes each)
+	 */
+	public static class Stats {
+		static final int MAGIC = 0x47425354;	//"GBST"
+		public static final int HISTOGRAM_BUCKETS = 32;
+		static final int SIZE = 48+8*HISTOGRAM_BUCKETS;
+
+		public int height = 1;
+		public long distinct, total;
+		public long nodes;
+		public long minKey = -1, maxKey = -1;	//-1 while the tree is empty
+		public final long[] histogram = new long[HISTOGRAM_BUCKETS];
+
+		/**
+		 * Count a distinct sequence with the given frequency.
+		 */
+		void add(long key, int frequency) {
+			distinct++;
+			histogram[31-Integer.numberOfLeadingZeros(frequency)]++;
+			if (minKey < 0 || key < minKey)
+				minKey = key;
+			if (key > maxKey)
+				maxKey = key;
+		}
+
+		byte[] toBytes() {
+			ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+			buffer.putInt(MAGIC);
+			buffer.putInt(height);
+			buffer.putLong(distinct);
+			buffer.putLong(total);
+			buffer.putLong(nodes);
+			buffer.putLong(minKey);
+			buffer.putLong(maxKey);
+			for (long count : histogram)
+				buffer.putLong(count);
+			return buffer.array();
+		}
+
+		/**
+		 * Read a statistics block (null if the block was never written).
+		 */
+		static Stats fromBytes(byte[] block) {
+			ByteBuffer buffer = ByteBuffer.wrap(block);
+			if (buffer.getInt() != MAGIC)
+				return null;
+			Stats stats = new Stats();
+			stats.height = buffer.getInt();
+			stats.distinct = buffer.getLong();
+			stats.total = buffer.getLong();
+			stats.nodes = buffer.getLong();
+			stats.minKey = buffer.getLong();
+			stats.maxKey = buffer.getLong();
+			for (int i=0; i<HISTOGRAM_BUCKETS; i++)
+				stats.histogram[i] = buffer.getLong();
+			return stats;
+		}
+	}
+
+/* ****** TREE ITERATOR ************************************************************************ */
+
+	/**
+	 * Walks through the TreeObjects of the BTree in sorted order. Only the nodes on the
+	 * path to the current TreeObject are kept in memory.
+	 */
+	public class TreeIterator {
+
+		private ArrayList<BTreeNode> nodes;		//path from the root to the current node
+		private ArrayList<Integer> indexes;		//index of the next TreeObject in each node on the path
+
+		private TreeIterator() throws IOException {
+			nodes = new ArrayList<BTreeNode>();
+			indexes = new ArrayList<Integer>();
+			descendLeft(root);
+		}
+
+		private TreeIterator(long fromKey) throws IOException {
+			nodes = new ArrayList<BTreeNode>();
+			indexes = new ArrayList<Integer>();
+			//push the path to the first key >= fromKey, skipping every smaller key on the way
+			BTreeNode node = root;
+			while (true) {
+				int i = 0;
+				while (i < node.getNumKeys() && node.getTreeObject(i).getKey() < fromKey)
+					i++;
+				nodes.add(node);
+				indexes.add(i);
+				if (node.isLeaf())
+					return;
+				node = retrieveNode(node.getChild(i));
+			}
+		}
+
+		/**
+		 * Push the given node and the leftmost path below it.
+		 */
+		private void descendLeft(BTreeNode node) throws IOException {
+			while (true) {
+				nodes.add(node);
+				indexes.add(0);
+				if (node.isLeaf())
+					return;
+				node = retrieveNode(node.getChild(0));
+			}
+		}
+
+		/**
+		 * Return the next TreeObject (null once every TreeObject has been returned).
+		 * @throws IOException If there is an error accessing the file
+		 */
+		public TreeObject next() throws IOException {
+			while (!nodes.isEmpty()) {
+				int top = nodes.size()-1;
+				BTreeNode node = nodes.get(top);
+				int i = indexes.get(top);
+				if (i < node.getNumKeys()) {
+					indexes.set(top, i+1);
+					if (!node.isLeaf())
+						descendLeft(retrieveNode(node.getChild(i+1)));
+					return node.getTreeObject(i);
+				}
+				nodes.remove(top);
+				indexes.remove(top);
+			}
+			return null;
+		}
+	}
+
+/* ****** BULK LOADER ************************************************************************ */
+
+	/**
+	 * Builds a new BTree from TreeObjects that are added in increasing key order. Every
+	 * node is filled completely before the next one is started, and nodes are written to
+	 * the end of the file in the order they are finished, so the file is written
+	 * sequentially. Only the open node and the last finished node of each level are kept
+	 * in memory; when finish() is called the open nodes on the right edge borrow keys from
+	 * their left siblings so that every node has at least degree-1 keys.
+	 */
+	public class BulkLoader {
+
+		private ArrayList<BTreeNode> open;		//the node being filled at each level (0 = leaves)
+		private ArrayList<BTreeNode> finished;	//the last finished node at each level, not yet written
+		private long lastKey;
+		private boolean empty;
+
+		private BulkLoader() throws IOException {
+			open = new ArrayList<BTreeNode>();
+			finished = new ArrayList<BTreeNode>();
+			open.add(new BTreeNode(0));
+			finished.add(null);
+			empty = true;
+		}
+
+		/**
+		 * Add the next TreeObject to the tree.
+		 * @param key The key; must be greater than the key added before it
+		 * @param frequency The frequency of the key
+		 * @throws IOException If there is an error accessing the file
+		 */
+		public void add(long key, int frequency) throws IOException {
+			if (!empty && key <= lastKey)
+				throw new IllegalArgumentException("Keys must be added in increasing order");
+			empty = false;
+			lastKey = key;
+
+			TreeObject object = new TreeObject(key, k);
+			object.setFrequency(frequency);
+			if (stats != null) {
+				stats.add(key, frequency);
+				stats.total += frequency;
+			}
+			BTreeNode leaf = open.get(0);
+			if (leaf.getNumKeys() < maxKeys)
+				leaf.addTreeObject(object, leaf.getNumKeys());
+			else
+				push(0, object);	//the leaf is full, so this object separates it from the next leaf
+		}
+
+		/**
+		 * The open node at the given level is full. Finish it, then give it and the
+		 * separator that follows it to the level above.
+		 */
+		private void push(int level, TreeObject separator) throws IOException {
+			BTreeNode node = open.get(level);
+			node.setCurrent(allocatePointer());
+			if (stats != null)
+				stats.nodes++;
+			if (finished.get(level) != null)
+				finished.get(level).writeNode();
+			finished.set(level, node);
+			BTreeNode next = new BTreeNode(0);
+			next.setLeaf(node.isLeaf());
+			open.set(level, next);
+
+			if (level+1 == open.size()) {
+				BTreeNode parent = new BTreeNode(0);
+				parent.setLeaf(false);
+				open.add(parent);
+				finished.add(null);
+			}
+			BTreeNode parent = open.get(level+1);
+			parent.addChild(node.getCurrentPointer());
+			if (parent.getNumKeys() < maxKeys)
+				parent.addTreeObject(separator, parent.getNumKeys());
+			else
+				push(level+1, separator);
+		}
+
+		/**
+		 * Write the rest of the tree and make it the root of this BTree. Call finalize()
+		 * afterwards to record the new root.
+		 * @throws IOException If there is an error accessing the file
+		 */
+		public void finish() throws IOException {
+			int top = open.size()-1;
+
+			//the open node on the top level becomes the root, and takes the place of the
+			//empty root that was written when the BTree was created
+			open.get(top).setCurrent(root.getCurrentPointer());
+			for (int level=0; level<top; level++) {
+				open.get(level).setCurrent(allocatePointer());
+				open.get(level+1).addChild(open.get(level).getCurrentPointer());
+			}
+			if (stats != null) {
+				stats.nodes += top;
+				stats.height = top+1;
+			}
+
+			//working down from the root, make sure no open node has too few keys
+			for (int level=top-1; level>=0; level--) {
+				BTreeNode node = open.get(level);
+				BTreeNode parent = open.get(level+1);
+				BTreeNode left = finished.get(level);	//the child just before node in parent
+				int separator = parent.getNumKeys()-1;
+				while (node.getNumKeys() < minKeys) {
+					node.addTreeObject(parent.removeTreeObject(separator), 0);
+					parent.addTreeObject(left.removeTreeObject(left.getNumKeys()-1), separator);
+					if (!node.isLeaf())
+						node.addChild(0, left.removeChild(left.getNumChildren()-1));
+				}
+			}
+
+			for (int level=0; level<=top; level++) {
+				if (finished.get(level) != null)
+					finished.get(level).writeNode();
+				open.get(level).writeNode();
+			}
+			root = open.get(top);
+		}
+	}
+
 /* ****** CACHE ************************************************************************ */
 	
 	/**
@@ -735,8 +2044,10 @@ public class BTree {
 		 */
 		public BTreeNode find(long sequence) {
 			
-			if (size==0)
+			if (size==0) {
+				cacheMisses++;
 				return null;
+			}
 			
 			BTreeNode foundNode = null;
 			//Cache is supposed to store BTreeNode objects
@@ -746,7 +2057,7 @@ public class BTree {
 				long currentNodePointer = (long) current.getElement();
 				int numKeys;
 				try {
-					BTreeNode currentNode = retrieveNode(currentNodePointer);
+					BTreeNode currentNode = loadNode(currentNodePointer);
 					numKeys = currentNode.getNumKeys();
 					//Need a forloop here to iterate through each key in the BTreeNode
 					for(int i=0;i<numKeys;i++)
@@ -755,6 +2066,7 @@ public class BTree {
 						{
 							//We found the sequence
 							foundNode = currentNode;
+							cacheHits++;
 							return foundNode; //Immediately return so we don't check the entire cache and don't check any other keys 
 						}
 					}
@@ -767,6 +2079,7 @@ public class BTree {
 			}
 			
 			//Object was not found in the cache; return null
+			cacheMisses++;
 			return null;
 		}
 		
@@ -793,8 +2106,10 @@ public class BTree {
 				return -1;
 			
 			// remove object from the cache
-			if(size==1) 
-				clearCache();
+			if(size==1) {
+				head = null;	//size is decremented below
+				tail = null;
+			}
 			else if(current==head) {
 				head = head.getNext();
 				head.setPrevious(null);
@@ -827,7 +2142,8 @@ public class BTree {
 			Long tmp; // the object to be returned
 			if (size==1) {
 				tmp = head.getElement();
-				clearCache();
+				head = null;	//size is decremented below
+				tail = null;
 			}
 			else {
 				tmp = tail.getElement();
@@ -56,8 +56,10 @@ public class Cache<T> {
 			return null;
 		
 		// remove object from the cache
-		if(count==1) 
-			clearCache();
+		if(count==1) {
+			head = null;	//count is decremented below
+			tail = null;
+		}
 		else if(current==head) {
 			head = head.getNext();
 			head.setPrevious(null);
@@ -92,7 +94,8 @@ public class Cache<T> {
 		T tmp; // the object to be returned
 		if (count==1) {
 			tmp = head.getElement();
-			clearCache();
+			head = null;	//count is decremented below
+			tail = null;
 		}
 		else {
 			tmp = tail.getElement();
@@ -0,0 +1,375 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Counts sequences approximately in a fixed amount of memory, for inputs too large to count
+ * exactly. The counts are kept in a Count-Min sketch: depth rows of width counters, where
+ * every sequence increments one counter per row (chosen by a different hash function per
+ * row) and its estimate is the smallest of its counters. Estimates are never too low, and
+ * with probability 1-e^-depth they are at most e*total/width too high. With conservative
+ * update, a sequence only raises the counters that are at its current estimate, which
+ * makes estimates closer without breaking that guarantee.
+ *
+ * The most frequent sequences are also tracked in a fixed number of slots, as in the
+ * Space-Saving algorithm, with the smallest count replaced first. A sequence's count is
+ * the sketch's estimate when it starts being tracked, and goes up by one for each later
+ * occurrence (never past the estimate), so it is never too low. Its error is how much
+ * of the count was not seen while tracked. Plain Space-Saving gives a new sequence the
+ * smallest count + 1, which for DNA (where even the most frequent sequence is a tiny part
+ * of the input) lets rare sequences push the frequent ones out; using the estimate, a
+ * sequence only replaces another when it is estimated to be more frequent.
+ *
+ * File layout:
+ *   magic "GBCM" (4 bytes), k (1 byte), unused (3 bytes), depth (4 bytes), width (4 bytes),
+ *   total sequences (8 bytes), number of heavy hitters (4 bytes), unused (4 bytes),
+ *   then the multiplier and offset of each row's hash function (16 bytes per row),
+ *   then every counter, row by row (4 bytes each),
+ *   then every heavy hitter: key (8 bytes), count (8 bytes), error (8 bytes)
+ */
+public class CountMinSketch implements KmerIndex {
+
+	public static final int MAGIC = 0x4742434D;	//"GBCM"
+	public static final int DEFAULT_DEPTH = 4;
+	private static final int HEADER_SIZE = 32;
+	private static final long SEED = 0x5EED;		//the same hash functions for every sketch
+
+	private int k;
+	private int depth, width;
+	private int widthBits;				//width is 2^widthBits
+	private long[] multipliers, offsets;	//hash function of each row
+	private int[] counters;				//only used while building
+	private long total;					//number of sequences counted
+	private String gbkFileName;
+	private SpaceSaving heavyHitters;	//tracked while building, read back from the file when searching
+	private RandomAccessFile file;		//only used when searching
+	private MappedByteBuffer mapped;	//the counters, when searching
+
+	/**
+	 * Create a new, empty sketch for building.
+	 * @param k The sequence length
+	 * @param megabytes The memory to use for the counters (rounded down to a power of 2 per row)
+	 * @param heavyHitterCount The number of most frequent sequences to track
+	 * @param gbkFileName The name of the gbk file; the sketch will be saved as
+	 * "<gbkFileName>.sketch.data.<k>"
+	 */
+	public CountMinSketch(int k, int megabytes, int heavyHitterCount, String gbkFileName) {
+		if (megabytes < 1 || megabytes > 1024)
+			throw new IllegalArgumentException("The sketch size must be between 1 and 1024 megabytes");
+		if (heavyHitterCount < 0)
+			throw new IllegalArgumentException("The number of heavy hitters must be non-negative");
+		this.k = k;
+		this.gbkFileName = gbkFileName;
+		depth = DEFAULT_DEPTH;
+		widthBits = 63-Long.numberOfLeadingZeros(((long) megabytes<<20)/(4*depth));
+		width = 1<<widthBits;
+		counters = new int[depth*width];
+		heavyHitters = new SpaceSaving(heavyHitterCount);
+
+		Random random = new Random(SEED);
+		multipliers = new long[depth];
+		offsets = new long[depth];
+		for (int row=0; row<depth; row++) {
+			multipliers[row] = random.nextLong() | 1;	//multiply-shift hashing needs an odd multiplier
+			offsets[row] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Open a saved sketch for searching.
+	 * @param fileName The sketch file
+	 * @throws IOException If the file cannot be read or is not a sketch
+	 */
+	public CountMinSketch(String fileName) throws IOException {
+		file = new RandomAccessFile(fileName, "r");
+		if (file.readInt() != MAGIC)
+			throw new IOException(fileName+" is not a sketch file");
+		k = file.readByte();
+		file.skipBytes(3);
+		depth = file.readInt();
+		width = file.readInt();
+		widthBits = Integer.numberOfTrailingZeros(width);
+		total = file.readLong();
+		int heavyHitterCount = file.readInt();
+		file.skipBytes(4);
+		multipliers = new long[depth];
+		offsets = new long[depth];
+		for (int row=0; row<depth; row++) {
+			multipliers[row] = file.readLong();
+			offsets[row] = file.readLong();
+		}
+		mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE+16L*depth, 4L*depth*width);
+
+		//the heavy hitters follow the counters, in heap order
+		heavyHitters = new SpaceSaving(heavyHitterCount);
+		ByteBuffer entries = ByteBuffer.allocate(24*heavyHitterCount);
+		file.getChannel().read(entries, HEADER_SIZE+16L*depth+4L*depth*width);
+		if (entries.hasRemaining())
+			throw new IOException(fileName+" ends before its heavy hitters");
+		entries.flip();
+		for (int i=0; i<heavyHitterCount; i++) {
+			heavyHitters.keys[i] = entries.getLong();
+			heavyHitters.counts[i] = entries.getLong();
+			heavyHitters.errors[i] = entries.getLong();
+		}
+		heavyHitters.size = heavyHitterCount;
+		gbkFileName = fileName.contains(".sketch.data.") ? fileName.substring(0, fileName.lastIndexOf(".sketch.data.")) : fileName;
+	}
+
+	/**
+	 * Return the counter of a key in a row.
+	 */
+	private int index(int row, long key) {
+		return row*width+(int) ((multipliers[row]*key+offsets[row])>>>(64-widthBits));
+	}
+
+	/**
+	 * Count one occurrence of a sequence.
+	 * @param key The sequence in binary format
+	 */
+	public void insert(long key) {
+		//conservative update: only raise the counters that are at the current estimate
+		int estimate = Integer.MAX_VALUE;
+		for (int row=0; row<depth; row++)
+			estimate = Math.min(estimate, counters[index(row, key)]);
+		if (estimate < Integer.MAX_VALUE) {
+			for (int row=0; row<depth; row++) {
+				int i = index(row, key);
+				if (counters[i] == estimate)
+					counters[i] = estimate+1;
+			}
+		}
+		total++;
+		heavyHitters.add(key, (estimate < Integer.MAX_VALUE) ? estimate+1 : estimate);
+	}
+
+	/**
+	 * Return the estimated frequency of a sequence. It is never lower than the true
+	 * frequency, and usually at most getErrorBound() higher.
+	 */
+	public int search(long key) {
+		int estimate = Integer.MAX_VALUE;
+		for (int row=0; row<depth; row++) {
+			int i = index(row, key);
+			estimate = Math.min(estimate, (mapped != null) ? mapped.getInt(4*i) : counters[i]);
+		}
+		return estimate;
+	}
+
+	/**
+	 * Return how much an estimate can exceed the true frequency, with probability
+	 * getConfidence(): e*total/width.
+	 */
+	public long getErrorBound() {
+		return (long) Math.ceil(Math.E*total/width);
+	}
+
+	/**
+	 * Return the probability that an estimate is within getErrorBound(): 1-e^-depth.
+	 */
+	public double getConfidence() {
+		return 1-Math.exp(-depth);
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * Return the number of sequences counted.
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Return the name of the file the sketch is saved to.
+	 */
+	public String getFileName() {
+		return gbkFileName+".sketch.data."+k;
+	}
+
+	/**
+	 * Write the sketch and the heavy hitters to its file.
+	 * @throws IOException If the file cannot be written
+	 */
+	public void save() throws IOException {
+		File tmp = new File(getFileName());
+		if (tmp.exists())
+			tmp.delete();
+		try (RandomAccessFile out = new RandomAccessFile(getFileName(), "rw")) {
+			FileChannel channel = out.getChannel();
+			ByteBuffer chunk = ByteBuffer.allocate(1<<16);
+			chunk.putInt(MAGIC);
+			chunk.put((byte) k);
+			chunk.put(new byte[3]);
+			chunk.putInt(depth);
+			chunk.putInt(width);
+			chunk.putLong(total);
+			chunk.putInt(heavyHitters.size);
+			chunk.putInt(0);
+			for (int row=0; row<depth; row++) {
+				chunk.putLong(multipliers[row]);
+				chunk.putLong(offsets[row]);
+			}
+			for (int count : counters) {
+				if (chunk.remaining() < 4)
+					write(channel, chunk);
+				chunk.putInt(count);
+			}
+			for (int i=0; i<heavyHitters.size; i++) {
+				if (chunk.remaining() < 24)
+					write(channel, chunk);
+				chunk.putLong(heavyHitters.keys[i]);
+				chunk.putLong(heavyHitters.counts[i]);
+				chunk.putLong(heavyHitters.errors[i]);
+			}
+			write(channel, chunk);
+		}
+	}
+
+	/**
+	 * Write out and empty a buffer.
+	 */
+	private static void write(FileChannel channel, ByteBuffer chunk) throws IOException {
+		chunk.flip();
+		while (chunk.hasRemaining())
+			channel.write(chunk);
+		chunk.clear();
+	}
+
+	/**
+	 * Creates a dump file of the heavy hitters, most frequent first (see printHeavyHitters()).
+	 * @throws IOException If there is an error creating the dump file.
+	 */
+	public void createDumpFile() throws IOException {
+		try (PrintStream out = new PrintStream(gbkFileName+".sketch.dump."+k)) {
+			printHeavyHitters(out);
+		}
+	}
+
+	/**
+	 * Print the heavy hitters, most frequent first, in the same format as
+	 * BTree.createDumpFile(). Each count is never too low, and at most the listed error too high.
+	 */
+	public void printHeavyHitters(PrintStream out) {
+		for (int i : heavyHitters.byCount())
+			out.println(new TreeObject(heavyHitters.keys[i], k).getSequence()+": "+heavyHitters.counts[i]
+					+" (error <= "+heavyHitters.errors[i]+")");
+	}
+
+	/**
+	 * Return the number of heavy hitters tracked.
+	 */
+	public int getHeavyHitterCount() {
+		return heavyHitters.size;
+	}
+
+	public void close() throws IOException {
+		if (file != null)
+			file.close();
+	}
+
+	/**
+	 * The heavy hitter summary: the tracked sequences are kept in a min-heap by count, with
+	 * a map from each key to its place in the heap.
+	 */
+	private static class SpaceSaving {
+		final long[] keys, counts, errors;	//the heap
+		int size;
+		final HashMap<Long,Integer> positions = new HashMap<Long,Integer>();
+
+		SpaceSaving(int capacity) {
+			keys = new long[capacity];
+			counts = new long[capacity];
+			errors = new long[capacity];
+		}
+
+		/**
+		 * Count one occurrence of a sequence.
+		 * @param estimate The sketch's estimate of the sequence's frequency, including this occurrence
+		 */
+		void add(long key, long estimate) {
+			if (keys.length == 0)
+				return;
+			Integer position = positions.get(key);
+			if (position != null) {
+				//both the count + 1 and the estimate are at least the true frequency
+				long count = Math.min(counts[position]+1, estimate);
+				errors[position] += count-counts[position]-1;
+				counts[position] = count;
+				siftDown(position);
+			}
+			else if (size < keys.length) {
+				keys[size] = key;
+				counts[size] = estimate;
+				errors[size] = estimate-1;
+				positions.put(key, size);
+				siftUp(size++);
+			}
+			else if (estimate > counts[0]) {
+				//replace the sequence with the smallest count
+				positions.remove(keys[0]);
+				keys[0] = key;
+				counts[0] = estimate;
+				errors[0] = estimate-1;
+				positions.put(key, 0);
+				siftDown(0);
+			}
+		}
+
+		private void siftUp(int i) {
+			while (i > 0 && counts[(i-1)/2] > counts[i]) {
+				swap(i, (i-1)/2);
+				i = (i-1)/2;
+			}
+		}
+
+		private void siftDown(int i) {
+			while (true) {
+				int smallest = i, left = 2*i+1, right = 2*i+2;
+				if (left < size && counts[left] < counts[smallest])
+					smallest = left;
+				if (right < size && counts[right] < counts[smallest])
+					smallest = right;
+				if (smallest == i)
+					return;
+				swap(i, smallest);
+				i = smallest;
+			}
+		}
+
+		private void swap(int i, int j) {
+			long key = keys[i], count = counts[i], error = errors[i];
+			keys[i] = keys[j];
+			counts[i] = counts[j];
+			errors[i] = errors[j];
+			keys[j] = key;
+			counts[j] = count;
+			errors[j] = error;
+			positions.put(keys[i], i);
+			positions.put(keys[j], j);
+		}
+
+		/**
+		 * Return the heap positions ordered from the largest count to the smallest.
+		 */
+		int[] byCount() {
+			Integer[] order = new Integer[size];
+			for (int i=0; i<size; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+			int[] result = new int[size];
+			for (int i=0; i<size; i++)
+				result[i] = order[i];
+			return result;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Counts sequences in a flat array with one entry for every possible sequence of length k,
+ * indexed by the sequence's binary key. Counting a sequence is a single array increment and
+ * a search is a single read at a known position, so for small k (where the 4^k entries fit in
+ * memory) this is much cheaper than a BTree.
+ *
+ * File layout:
+ *   magic "GBDN" (4 bytes), k (1 byte), unused (3 bytes), total sequences (8 bytes),
+ *   then the frequency of every key from 0 to 4^k-1 (4 bytes each)
+ */
+public class DenseIndex implements KmerIndex {
+
+	public static final int MAGIC = 0x4742444E;	//"GBDN"
+	public static final int MAX_K = 14;			//4^14 frequencies take 1 GB
+	private static final int HEADER_SIZE = 16;
+
+	private int k;
+	private int[] counts;				//only used while building
+	private long total;					//number of sequences counted
+	private String gbkFileName;
+	private RandomAccessFile file;		//only used when searching
+	private ByteBuffer buffer;			//reused for every search
+
+	/**
+	 * Create a new, empty index for building.
+	 * @param k The sequence length. Range: [1,MAX_K]
+	 * @param gbkFileName The name of the gbk file; the index will be saved as
+	 * "<gbkFileName>.dense.data.<k>"
+	 */
+	public DenseIndex(int k, String gbkFileName) {
+		if (k<1 || k>MAX_K)
+			throw new IllegalArgumentException("Parameter 'k' is out of bounds [1,"+MAX_K+"].");
+		this.k = k;
+		this.gbkFileName = gbkFileName;
+		counts = new int[1<<(2*k)];
+	}
+
+	/**
+	 * Open a saved index for searching.
+	 * @param fileName The index file
+	 * @throws IOException If the file cannot be read or is not a dense index
+	 */
+	public DenseIndex(String fileName) throws IOException {
+		file = new RandomAccessFile(fileName, "r");
+		if (file.readInt() != MAGIC)
+			throw new IOException(fileName+" is not a dense index file");
+		k = file.readByte();
+		file.skipBytes(3);
+		total = file.readLong();
+		gbkFileName = fileName.contains(".dense.data.") ? fileName.substring(0, fileName.lastIndexOf(".dense.data.")) : fileName;
+		buffer = ByteBuffer.allocate(4);
+	}
+
+	/**
+	 * Count one occurrence of a sequence.
+	 * @param key The sequence in binary format
+	 */
+	public void insert(long key) {
+		counts[(int) key]++;
+		total++;
+	}
+
+	/**
+	 * Return the frequency of a sequence with one positional read.
+	 */
+	public int search(long key) throws IOException {
+		if (file == null)
+			return counts[(int) key];
+		buffer.clear();
+		FileChannel channel = file.getChannel();
+		long position = HEADER_SIZE+4*key;
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position+buffer.position()) < 0)
+				throw new IOException("Unexpected end of dense index file");
+		}
+		return buffer.getInt(0);
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * Return the number of sequences counted.
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Return the name of the file the index is saved to.
+	 */
+	public String getFileName() {
+		return gbkFileName+".dense.data."+k;
+	}
+
+	/**
+	 * Write the index to its file.
+	 * @throws IOException If the file cannot be written
+	 */
+	public void save() throws IOException {
+		File tmp = new File(getFileName());
+		if (tmp.exists())
+			tmp.delete();
+		try (RandomAccessFile out = new RandomAccessFile(getFileName(), "rw")) {
+			FileChannel channel = out.getChannel();
+			ByteBuffer chunk = ByteBuffer.allocate(1<<16);
+			chunk.putInt(MAGIC);
+			chunk.put((byte) k);
+			chunk.put(new byte[3]);
+			chunk.putLong(total);
+			for (int count : counts) {
+				if (!chunk.hasRemaining()) {
+					chunk.flip();
+					while (chunk.hasRemaining())
+						channel.write(chunk);
+					chunk.clear();
+				}
+				chunk.putInt(count);
+			}
+			chunk.flip();
+			while (chunk.hasRemaining())
+				channel.write(chunk);
+		}
+	}
+
+	/**
+	 * Creates a dump file of the index in the same format as BTree.createDumpFile().
+	 * @throws IOException If there is an error creating the dump file.
+	 */
+	public void createDumpFile() throws IOException {
+		try (PrintStream out = new PrintStream(gbkFileName+".btree.dump."+k)) {
+			for (int key=0; key<counts.length; key++) {
+				if (counts[key] != 0)
+					out.println(new TreeObject(key, k).getSequence()+": "+counts[key]);
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		if (file != null)
+			file.close();
+	}
+}
@@ -0,0 +1,527 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Runs whole builds and searches over the bundled datasets and query files, and records
+ * wall time, sequences or queries per second, peak heap, GC time and node I/O for each run
+ * in a CSV report (and optionally a JSON report).
+ *
+ * A BTree is built for every data/test*.gbk file at every sequence length and degree, and
+ * then searched with queries/query<k> once per cache size. Given an earlier report with
+ * --baseline, the runs are compared and the program exits with status 1 if any run got
+ * more than --tolerance percent slower or does more node I/O.
+ *
+ * With --allocations, the bytes allocated by the calling thread (as counted by the JVM) per
+ * insert, search, node read, node write and cached insert and search are measured over a
+ * fixed set of keys instead, and the exit status is 1 if any is over its budget, so changes
+ * that make the hot paths allocate more are caught.
+ */
+public class GeneBankBenchmark {
+
+	private static final String COLUMNS = "phase,dataset,k,degree,cache,items,wall_ms,items_per_sec,peak_heap_mb,gc_ms,node_reads,node_writes";
+	private static final long NOISE_MS = 100;	//smaller differences in wall time are never counted as regressions
+
+	//the fixed input of --allocations, and the most bytes each operation may allocate
+	private static final int ALLOCATION_KEYS = 20000, ALLOCATION_K = 12, ALLOCATION_DEGREE = 32, ALLOCATION_CACHE = 100;
+	private static final long ALLOCATION_SEED = 0x5EED;
+	private static final String[] ALLOCATION_OPERATIONS = {"insert (new sequence)", "insert (repeated sequence)",
+			"search", "node read", "node write", "insert with cache", "search with cache"};
+	private static final long[] ALLOCATION_BUDGETS = {10700, 12400, 11000, 6560, 1450, 383000, 97700};	//about 10% above the current amounts
+
+	/**
+	 * The measurements of one build or search.
+	 */
+	private static class Result {
+		String phase, dataset;
+		int k, degree, cacheSize;
+		long items;				//sequences inserted or queries searched
+		long wallMillis, gcMillis, nodeReads, nodeWrites;
+		double peakHeapMB;
+
+		/**
+		 * Return what identifies the run in two different reports.
+		 */
+		String key() {
+			return phase+","+dataset+","+k+","+degree+","+cacheSize;
+		}
+
+		long itemsPerSecond() {
+			return (wallMillis > 0) ? items*1000/wallMillis : items*1000;
+		}
+
+		String toCsv() {
+			return key()+","+items+","+wallMillis+","+itemsPerSecond()+","+String.format("%.1f", peakHeapMB)+","
+					+gcMillis+","+nodeReads+","+nodeWrites;
+		}
+
+		String toJson() {
+			return String.format("{\"phase\": \"%s\", \"dataset\": \"%s\", \"k\": %d, \"degree\": %d, \"cache\": %d, "
+					+ "\"items\": %d, \"wall_ms\": %d, \"items_per_sec\": %d, \"peak_heap_mb\": %.1f, \"gc_ms\": %d, "
+					+ "\"node_reads\": %d, \"node_writes\": %d}", phase, dataset, k, degree, cacheSize, items, wallMillis,
+					itemsPerSecond(), peakHeapMB, gcMillis, nodeReads, nodeWrites);
+		}
+
+		static Result fromCsv(String line) {
+			String[] fields = line.split(",");
+			Result result = new Result();
+			result.phase = fields[0];
+			result.dataset = fields[1];
+			result.k = Integer.parseInt(fields[2]);
+			result.degree = Integer.parseInt(fields[3]);
+			result.cacheSize = Integer.parseInt(fields[4]);
+			result.items = Long.parseLong(fields[5]);
+			result.wallMillis = Long.parseLong(fields[6]);
+			result.peakHeapMB = Double.parseDouble(fields[8]);
+			result.gcMillis = Long.parseLong(fields[9]);
+			result.nodeReads = Long.parseLong(fields[10]);
+			result.nodeWrites = Long.parseLong(fields[11]);
+			return result;
+		}
+	}
+
+	/**
+	 * Measures wall time, peak heap and GC time from when it is created until finish().
+	 */
+	private static class Measurement {
+		private final long start, gcStart;
+
+		Measurement() {
+			System.gc();	//start every run from the same heap
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP)
+					pool.resetPeakUsage();
+			}
+			gcStart = gcMillis();
+			start = System.nanoTime();
+		}
+
+		void finish(Result result) {
+			result.wallMillis = (System.nanoTime()-start)/1000000;
+			result.gcMillis = gcMillis()-gcStart;
+			long peak = 0;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP)
+					peak += pool.getPeakUsage().getUsed();
+			}
+			result.peakHeapMB = peak/(1024.0*1024.0);
+		}
+
+		private static long gcMillis() {
+			long total = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+				total += Math.max(0, gc.getCollectionTime());
+			return total;
+		}
+	}
+
+	/**
+	 * Build a BTree from a gbk file, the way GeneBankCreateBTree does.
+	 * @param btreeName The name to build the BTree under (see the BTree constructor)
+	 * @param result Where to record the measurements
+	 * @return The name of the BTree file
+	 */
+	private static String build(File gbkFile, String btreeName, int k, int degree, Result result) throws IOException {
+		Measurement measurement = new Measurement();
+		BTree btree = new BTree(degree, k, btreeName);
+		result.items = GeneBankCreateBTree.insertSequences(btree::BTreeInsert, gbkFile, k, false, null);
+		btree.finalize();
+		measurement.finish(result);
+
+		result.degree = btree.getDegree();
+		result.nodeReads = btree.getNodeReads();
+		result.nodeWrites = btree.getNodeWrites();
+		btree.close();
+		return btree.getFileName();
+	}
+
+	/**
+	 * Search a BTree for every query in a query file, the way GeneBankSearch does. The
+	 * results are formatted but thrown away.
+	 * @param result Where to record the measurements
+	 */
+	private static void search(String btreeFileName, File queryFile, int cacheSize, Result result) throws IOException {
+		Measurement measurement = new Measurement();
+		KmerIndex index = KmerIndex.open(btreeFileName, cacheSize);
+		ResultWriter out = new ResultWriter(Channels.newChannel(OutputStream.nullOutputStream()), ResultWriter.Format.TEXT, false);
+		result.items = GeneBankSearch.search(index, queryFile, out);
+		out.flush();
+		measurement.finish(result);
+
+		BTree btree = (BTree) index;
+		result.nodeReads = btree.getNodeReads();
+		result.nodeWrites = btree.getNodeWrites();
+		index.close();
+	}
+
+	/**
+	 * Run every build and search, each the given number of times, keeping the fastest.
+	 */
+	private static ArrayList<Result> run(File dataDirectory, File queryDirectory, int[] sequenceLengths, int[] degrees,
+			int[] cacheSizes, int repeat) throws IOException {
+		File[] datasets = dataDirectory.listFiles((dir, name) -> name.startsWith("test") && name.endsWith(".gbk"));
+		if (datasets == null || datasets.length == 0)
+			throw new FileNotFoundException("No test*.gbk files in "+dataDirectory);
+		Arrays.sort(datasets);
+		File workDirectory = Files.createTempDirectory("genebank-benchmark").toFile();
+
+		ArrayList<Result> results = new ArrayList<Result>();
+		try {
+			//warm up the JIT compiler on the first dataset, so the first recorded run is not slower than the rest
+			String warmUp = build(datasets[0], new File(workDirectory, "warmup").getPath(), sequenceLengths[0], degrees[0], new Result());
+			new File(warmUp).delete();
+
+			for (File gbkFile : datasets) {
+				for (int k : sequenceLengths) {
+					File queryFile = new File(queryDirectory, "query"+k);
+					for (int degree : degrees) {
+						String btreeName = new File(workDirectory, gbkFile.getName()).getPath();
+						String btreeFileName = null;
+						Result build = null;
+						for (int i=0; i<repeat; i++) {
+							if (btreeFileName != null)
+								new File(btreeFileName).delete();
+							Result attempt = newResult("build", gbkFile, k, 0);
+							btreeFileName = build(gbkFile, btreeName, k, degree, attempt);
+							if (build == null || attempt.wallMillis < build.wallMillis)
+								build = attempt;
+						}
+						report(build, results);
+
+						if (queryFile.exists()) {
+							for (int cacheSize : cacheSizes) {
+								Result search = null;
+								for (int i=0; i<repeat; i++) {
+									Result attempt = newResult("search", gbkFile, k, cacheSize);
+									search(btreeFileName, queryFile, cacheSize, attempt);
+									attempt.degree = build.degree;
+									if (search == null || attempt.wallMillis < search.wallMillis)
+										search = attempt;
+								}
+								report(search, results);
+							}
+						}
+						new File(btreeFileName).delete();
+					}
+				}
+			}
+		} finally {
+			workDirectory.delete();
+		}
+		return results;
+	}
+
+	private static Result newResult(String phase, File gbkFile, int k, int cacheSize) {
+		Result result = new Result();
+		result.phase = phase;
+		result.dataset = gbkFile.getName();
+		result.k = k;
+		result.cacheSize = cacheSize;
+		return result;
+	}
+
+	/**
+	 * Add a result and show it on the console as it comes in.
+	 */
+	private static void report(Result result, ArrayList<Result> results) {
+		results.add(result);
+		System.out.println(result.toCsv());
+	}
+
+	/**
+	 * Compare a report against a baseline report and print every change.
+	 * @param tolerance The percentage by which wall time or node I/O may grow
+	 * @return True if any run regressed
+	 */
+	private static boolean compare(ArrayList<Result> baseline, ArrayList<Result> current, double tolerance, PrintStream out) {
+		HashMap<String,Result> before = new HashMap<String,Result>();
+		for (Result result : baseline)
+			before.put(result.key(), result);
+
+		boolean regressed = false;
+		out.println("run                                      wall ms (before -> after)    node I/O (before -> after)");
+		for (Result after : current) {
+			Result old = before.get(after.key());
+			if (old == null) {
+				out.println(after.key()+": not in the baseline");
+				continue;
+			}
+			long oldIO = old.nodeReads+old.nodeWrites, newIO = after.nodeReads+after.nodeWrites;
+			boolean slower = after.wallMillis-old.wallMillis > NOISE_MS && after.wallMillis > old.wallMillis*(1+tolerance/100);
+			boolean moreIO = newIO > oldIO*(1+tolerance/100);
+			out.println(String.format("%-40s %8d -> %-8d (%+6.1f%%)  %10d -> %-10d %s", after.key(), old.wallMillis,
+					after.wallMillis, percentChange(old.wallMillis, after.wallMillis), oldIO, newIO,
+					(slower || moreIO) ? "REGRESSION" : ""));
+			regressed |= slower || moreIO;
+		}
+		return regressed;
+	}
+
+	private static double percentChange(long before, long after) {
+		return (before > 0) ? 100.0*(after-before)/before : 0;
+	}
+
+	/**
+	 * Read a CSV report.
+	 */
+	private static ArrayList<Result> readReport(String fileName) throws IOException {
+		ArrayList<Result> results = new ArrayList<Result>();
+		try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+			String line = in.readLine();
+			if (line == null || !line.equals(COLUMNS))
+				throw new IOException(fileName+" is not a benchmark report");
+			while ((line = in.readLine()) != null) {
+				if (!line.isEmpty())
+					results.add(Result.fromCsv(line));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Write a CSV report, and a JSON report if a JSON file name is given.
+	 */
+	private static void writeReport(ArrayList<Result> results, String csvFileName, String jsonFileName) throws IOException {
+		try (PrintStream out = new PrintStream(csvFileName)) {
+			out.println(COLUMNS);
+			for (Result result : results)
+				out.println(result.toCsv());
+		}
+		if (jsonFileName != null) {
+			try (PrintStream out = new PrintStream(jsonFileName)) {
+				out.println("[");
+				for (int i=0; i<results.size(); i++)
+					out.println("  "+results.get(i).toJson()+(i < results.size()-1 ? "," : ""));
+				out.println("]");
+			}
+		}
+	}
+
+	/**
+	 * One of the hot paths checked by --allocations, run once per key.
+	 */
+	private interface Operation {
+		void run(long key) throws IOException;
+	}
+
+	/**
+	 * Return the number of bytes the current thread has allocated so far.
+	 */
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+	}
+
+	/**
+	 * Return the average number of bytes allocated by running an operation once for every key.
+	 */
+	private static long bytesPerOperation(Operation operation, long[] keys) throws IOException {
+		long start = allocatedBytes();
+		for (long key : keys)
+			operation.run(key);
+		return (allocatedBytes()-start)/keys.length;
+	}
+
+	/**
+	 * Return count node pointers, going round the root and its children.
+	 */
+	private static long[] nodePointers(BTree btree, int count) {
+		BTree.BTreeNode root = btree.getRoot();
+		long[] nodes = new long[root.getNumChildren()+1];
+		nodes[0] = root.getCurrentPointer();
+		for (int i=1; i<nodes.length; i++)
+			nodes[i] = root.getChild(i-1);
+		long[] pointers = new long[count];
+		for (int i=0; i<count; i++)
+			pointers[i] = nodes[i%nodes.length];
+		return pointers;
+	}
+
+	/**
+	 * Measure the bytes allocated per operation on the hot paths of building and searching,
+	 * over a fixed set of random keys in a BTree of a fixed degree, and compare them with
+	 * ALLOCATION_BUDGETS. Everything is run twice and only the second run is measured, so
+	 * the JIT compiler has already removed the allocations it can.
+	 * @return True if any operation allocated more than its budget
+	 * @throws IOException If a BTree file cannot be written or read
+	 */
+	private static boolean checkAllocations(PrintStream out) throws IOException {
+		Random random = new Random(ALLOCATION_SEED);
+		long[] keys = new long[ALLOCATION_KEYS];
+		for (int i=0; i<keys.length; i++)
+			keys[i] = random.nextLong() & ((1L<<(2*ALLOCATION_K))-1);
+		File workDirectory = Files.createTempDirectory("genebank-allocations").toFile();
+
+		long[] measured = new long[ALLOCATION_BUDGETS.length];
+		try {
+			for (int pass=0; pass<2; pass++) {
+				BTree btree = new BTree(ALLOCATION_DEGREE, ALLOCATION_K, new File(workDirectory, "plain").getPath());
+				measured[0] = bytesPerOperation(btree::BTreeInsert, keys);
+				measured[1] = bytesPerOperation(btree::BTreeInsert, keys);
+				measured[2] = bytesPerOperation(btree::search, keys);
+				measured[3] = bytesPerOperation(btree::readNode, nodePointers(btree, keys.length));
+				measured[4] = bytesPerOperation(key -> btree.getRoot().writeNode(), keys);
+				btree.finalize();
+				btree.close();
+				new File(btree.getFileName()).delete();
+
+				//the node cache reads every cached node on each lookup, so fewer keys are enough
+				long[] cachedKeys = Arrays.copyOf(keys, keys.length/10);
+				BTree cached = new BTree(ALLOCATION_DEGREE, ALLOCATION_K, new File(workDirectory, "cached").getPath(), ALLOCATION_CACHE);
+				measured[5] = bytesPerOperation(cached::BTreeInsert, cachedKeys);
+				measured[6] = bytesPerOperation(cached::search, cachedKeys);
+				cached.finalize();
+				cached.close();
+				new File(cached.getFileName()).delete();
+			}
+		} finally {
+			workDirectory.delete();
+		}
+
+		boolean over = false;
+		out.println("operation                      bytes/op    budget");
+		for (int i=0; i<measured.length; i++) {
+			boolean exceeded = measured[i] > ALLOCATION_BUDGETS[i];
+			out.println(String.format("%-28s %10d %9d %s", ALLOCATION_OPERATIONS[i], measured[i], ALLOCATION_BUDGETS[i],
+					exceeded ? "OVER BUDGET" : ""));
+			over |= exceeded;
+		}
+		return over;
+	}
+
+	/**
+	 * Parse a comma separated list of non-negative ints.
+	 */
+	private static int[] parseList(String list) {
+		String[] items = list.split(",");
+		int[] values = new int[items.length];
+		for (int i=0; i<items.length; i++) {
+			values[i] = Integer.parseInt(items[i]);
+			if (values[i] < 0)
+				throw new IllegalArgumentException("List values must be non-negative");
+		}
+		return values;
+	}
+
+	/**
+	 * Run the program.
+	 */
+	public static void main(String[] args) {
+		File dataDirectory = new File("data"), queryDirectory = new File("queries");
+		int[] sequenceLengths = {7, 16}, degrees = {0, 32}, cacheSizes = {0, 100};
+		int repeat = 1;
+		double tolerance = 10;
+		String outputFileName = "benchmark.csv", jsonFileName = null, baselineFileName = null;
+		String[] compareFileNames = null;
+		boolean allocations = false;
+
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--data"))
+					dataDirectory = new File(args[++i]);
+				else if (args[i].equals("--queries"))
+					queryDirectory = new File(args[++i]);
+				else if (args[i].equals("--k")) {
+					sequenceLengths = parseList(args[++i]);
+					for (int k : sequenceLengths) {
+						if (k < 1 || k > 31)
+							throw new IllegalArgumentException("Sequence length must be between 1 and 31 (inclusive)");
+					}
+				}
+				else if (args[i].equals("--degrees"))
+					degrees = parseList(args[++i]);
+				else if (args[i].equals("--caches"))
+					cacheSizes = parseList(args[++i]);
+				else if (args[i].equals("--repeat")) {
+					repeat = Integer.parseInt(args[++i]);
+					if (repeat < 1)
+						throw new IllegalArgumentException("Repeat must be positive");
+				}
+				else if (args[i].equals("--output"))
+					outputFileName = args[++i];
+				else if (args[i].equals("--json"))
+					jsonFileName = args[++i];
+				else if (args[i].equals("--baseline"))
+					baselineFileName = args[++i];
+				else if (args[i].equals("--tolerance")) {
+					tolerance = Double.parseDouble(args[++i]);
+					if (tolerance < 0)
+						throw new IllegalArgumentException("Tolerance must be non-negative");
+				}
+				else if (args[i].equals("--allocations"))
+					allocations = true;
+				else if (args[i].equals("--compare")) {
+					compareFileNames = new String[] {args[i+1], args[i+2]};
+					i += 2;
+				}
+				else
+					throw new IllegalArgumentException("Unexpected argument "+args[i]);
+			}
+
+			if (allocations) {
+				if (checkAllocations(System.out)) {
+					System.out.println("Error: At least one operation allocated more than its budget.");
+					System.exit(1);
+				}
+				return;
+			}
+
+			boolean regressed;
+			if (compareFileNames != null) {
+				regressed = compare(readReport(compareFileNames[0]), readReport(compareFileNames[1]), tolerance, System.out);
+			}
+			else {
+				System.out.println(COLUMNS);
+				ArrayList<Result> results = run(dataDirectory, queryDirectory, sequenceLengths, degrees, cacheSizes, repeat);
+				writeReport(results, outputFileName, jsonFileName);
+				regressed = (baselineFileName != null) && compare(readReport(baselineFileName), results, tolerance, System.out);
+			}
+			if (regressed) {
+				System.out.println("Error: At least one run regressed by more than "+tolerance+"%.");
+				System.exit(1);
+			}
+		}
+		catch (FileNotFoundException e) {
+			System.out.println("Error: Please make sure that the filename is valid.");
+			e.printStackTrace();
+		}
+		catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			e.printStackTrace();
+			printUsage();
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error: Could not run the benchmark.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method which will print the usage statement to the
+	 * console.
+	 */
+	private static void printUsage() {
+		System.out.println("Usage: java GeneBankBenchmark [--data <dir>] [--queries <dir>] [--k <k>,...] [--degrees <degree>,...]"
+				+ " [--caches <cache size>,...] [--repeat <n>] [--output <csv file>] [--json <json file>]"
+				+ " [--baseline <csv file>] [--tolerance <percent>]"
+				+ "\n       java GeneBankBenchmark [--tolerance <percent>] --compare <baseline csv file> <csv file>"
+				+ "\n       java GeneBankBenchmark --allocations"
+				+ "\nNote: Defaults are data, queries, k 7,16, degrees 0,32 (0 is the optimal degree), caches 0,100,"
+				+ "\n      1 repeat (the fastest of the repeats is kept), benchmark.csv and a tolerance of 10%."
+				+ "\n      The exit status is 1 if a run in the baseline got slower or does more node I/O than the tolerance allows."
+				+ "\n      --allocations measures the bytes allocated per insert, search, node read, node write and cached"
+				+ "\n      insert and search, and the exit status is 1 if any of them is over its budget.");
+	}
+}
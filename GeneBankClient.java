@@ -0,0 +1,213 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Scanner;
+
+/**
+ * A small client for GeneBankServer. It can be used from other programs (and tests),
+ * or from the command line to run a query file against a running server.
+ */
+public class GeneBankClient {
+
+	private SocketChannel channel;
+	private BufferedReader in;
+	private Writer out;
+
+	/**
+	 * Connect to a server listening on a Unix-domain socket.
+	 * @param socketPath The path of the socket file
+	 */
+	public GeneBankClient(String socketPath) throws IOException {
+		channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+		channel.connect(UnixDomainSocketAddress.of(socketPath));
+		openStreams();
+	}
+
+	/**
+	 * Connect to a server listening on the loopback interface.
+	 * @param port The port of the server
+	 */
+	public GeneBankClient(int port) throws IOException {
+		channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		openStreams();
+	}
+
+	private void openStreams() throws IOException {
+		in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), "US-ASCII"));
+		out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), "US-ASCII"));
+	}
+
+	/**
+	 * Return the frequency of a single sequence.
+	 */
+	public int get(String sequence) throws IOException {
+		out.write("GET "+sequence+"\n");
+		out.flush();
+		return parseFrequency(readLine());
+	}
+
+	/**
+	 * Return the frequency of each of the given sequences, in the same order.
+	 */
+	public int[] batch(ArrayList<String> sequences) throws IOException {
+		//send the requests on another thread while the replies are read here, so neither
+		//side blocks on a full socket buffer however large the batch is
+		IOException[] failure = new IOException[1];
+		Thread sender = new Thread(() -> {
+			try {
+				out.write("BATCH "+sequences.size()+"\n");
+				for (String sequence : sequences)
+					out.write(sequence+"\n");
+				out.flush();
+			} catch (IOException e) {
+				failure[0] = e;
+			}
+		}, "GeneBankClient-sender");
+		sender.setDaemon(true);
+		sender.start();
+
+		//read the whole reply before reporting an error so the connection stays usable
+		int[] frequencies = new int[sequences.size()];
+		IllegalArgumentException error = null;
+		try {
+			for (int i=0; i<frequencies.length; i++) {
+				try {
+					frequencies[i] = parseFrequency(readLine());
+				} catch (IllegalArgumentException e) {
+					if (error == null)
+						error = e;
+				}
+			}
+			readEnd();
+		} finally {
+			try {
+				sender.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while sending a batch", e);
+			}
+		}
+		if (failure[0] != null)
+			throw failure[0];
+		if (error != null)
+			throw error;
+		return frequencies;
+	}
+
+	/**
+	 * Return every "<sequence>: <frequency>" line that starts with the given prefix.
+	 * @param prefix The prefix to search for
+	 * @param k The sequence length of the tree to search (0 if the server has only one tree)
+	 */
+	public ArrayList<String> prefix(String prefix, int k) throws IOException {
+		out.write("PREFIX "+prefix+(k > 0 ? " "+k : "")+"\n");
+		out.flush();
+
+		ArrayList<String> results = new ArrayList<String>();
+		String line;
+		while (!(line = readLine()).equals("END"))
+			results.add(line);
+		return results;
+	}
+
+	/**
+	 * Disconnect from the server.
+	 */
+	public void close() throws IOException {
+		out.write("QUIT\n");
+		out.flush();
+		channel.close();
+	}
+
+	/**
+	 * Read one reply line, turning ERROR replies into exceptions.
+	 */
+	private String readLine() throws IOException {
+		String line = in.readLine();
+		if (line == null)
+			throw new IOException("The server closed the connection");
+		if (line.startsWith("ERROR "))
+			throw new IllegalArgumentException(line.substring(6));
+		return line;
+	}
+
+	private void readEnd() throws IOException {
+		String line = readLine();
+		if (!line.equals("END"))
+			throw new IOException("Unexpected reply from server: "+line);
+	}
+
+	private static int parseFrequency(String line) {
+		return Integer.parseInt(line.substring(line.lastIndexOf(' ')+1));
+	}
+
+	/**
+	 * Send every sequence of a query file to the server as one batch and print the
+	 * results in the same format as GeneBankSearch.
+	 */
+	public static void main(String[] args) {
+		String socketPath = null;
+		int port = GeneBankServer.DEFAULT_PORT;
+		File query = null;
+
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--unix"))
+					socketPath = args[++i];
+				else if (args[i].equals("--port"))
+					port = Integer.parseInt(args[++i]);
+				else if (query == null)
+					query = new File(args[i]);
+				else
+					throw new IllegalArgumentException("Unexpected argument "+args[i]);
+			}
+			if (query == null)
+				throw new IllegalArgumentException("A query file must be specified");
+
+			ArrayList<String> sequences = new ArrayList<String>();
+			Scanner scan = new Scanner(query);
+			while (scan.hasNext())
+				sequences.add(scan.next());
+			scan.close();
+
+			GeneBankClient client = (socketPath != null) ? new GeneBankClient(socketPath) : new GeneBankClient(port);
+			int[] frequencies = client.batch(sequences);
+			client.close();
+
+			for (int i=0; i<frequencies.length; i++) {
+				if (frequencies[i] != 0)
+					System.out.println(sequences.get(i).toLowerCase()+": "+frequencies[i]);
+			}
+		} catch (FileNotFoundException e) {
+			System.out.println("Error: Please make sure that the filename is valid.");
+			e.printStackTrace();
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			e.printStackTrace();
+			printUsage();
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error: Could not communicate with the server.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method which will print the usage statement to the
+	 * console.
+	 */
+	private static void printUsage() {
+		System.out.println("Usage: java GeneBankClient [--unix <socket file> | --port <port>] <query file>");
+	}
+}
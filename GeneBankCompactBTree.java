@@ -0,0 +1,74 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Rewrites a finished BTree file so that only reachable nodes are kept and nodes that
+ * are used together are stored close together, which lets searches benefit from
+ * read-ahead.
+ */
+public class GeneBankCompactBTree {
+
+	/**
+	 * Run the program.
+	 */
+	public static void main(String[] args) {
+		boolean vanEmdeBoas = false;
+		String btreeFileName = null, outputFileName = null;
+
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--order")) {
+					String order = args[++i];
+					if (order.equals("veb"))
+						vanEmdeBoas = true;
+					else if (!order.equals("bfs"))
+						throw new IllegalArgumentException("Order must be bfs or veb");
+				}
+				else if (btreeFileName == null)
+					btreeFileName = args[i];
+				else if (outputFileName == null)
+					outputFileName = args[i];
+				else
+					throw new IllegalArgumentException("Unexpected argument "+args[i]);
+			}
+			if (btreeFileName == null)
+				throw new IllegalArgumentException("A BTree file must be specified");
+			if (!new File(btreeFileName).exists())
+				throw new FileNotFoundException(btreeFileName);
+
+			//without an output file, compact into a temporary file and then replace the original
+			String target = (outputFileName != null) ? outputFileName : btreeFileName+".compact";
+			BTree btree = new BTree(btreeFileName);
+			btree.compact(target, vanEmdeBoas);
+			btree.close();
+			if (outputFileName == null)
+				Files.move(Paths.get(target), Paths.get(btreeFileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (FileNotFoundException e) {
+			System.out.println("Error: Please make sure that the filename is valid.");
+			e.printStackTrace();
+		}
+		catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			e.printStackTrace();
+			printUsage();
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error: Could not compact the BTree file.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method which will print the usage statement to the
+	 * console.
+	 */
+	private static void printUsage() {
+		System.out.println("Usage: java GeneBankCompactBTree [--order bfs|veb] <btree file> [<output file>]"
+				+ "\nNote: Nodes are stored in breadth-first order (bfs) by default, or in van Emde Boas order (veb)."
+				+ "\n      Without an output file, the BTree file is replaced.");
+	}
+}
@@ -0,0 +1,263 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Compares the sequences of two BTree files with the same sequence length: how many are
+ * shared or only in one of them, their Jaccard similarity (by distinct sequences, and
+ * weighted by frequency) and how much of each is contained in the other.
+ *
+ * Both trees are read in sorted order at the same time (a merge join), so only one path
+ * per tree is held in memory. The key space is split into ranges at keys of the first
+ * tree's root, and each range is compared by its own thread with its own copies of both
+ * trees, starting at the first key of the range.
+ */
+public class GeneBankCompare {
+
+	/**
+	 * The counts of a comparison of one key range, or of the whole trees once the ranges
+	 * are added up.
+	 */
+	private static class Comparison {
+		long shared, onlyFirst, onlySecond;	//distinct sequences
+		long totalFirst, totalSecond;		//sums of frequencies
+		long minimums, maximums;			//sums of the smaller and larger frequency of every sequence
+
+		void add(Comparison other) {
+			shared += other.shared;
+			onlyFirst += other.onlyFirst;
+			onlySecond += other.onlySecond;
+			totalFirst += other.totalFirst;
+			totalSecond += other.totalSecond;
+			minimums += other.minimums;
+			maximums += other.maximums;
+		}
+	}
+
+	/**
+	 * Compare the sequences of two BTree files with keys in [low, high).
+	 * @param differences Where to write the sequences that are only in one of the trees
+	 * (null to not write them)
+	 * @return The counts of the range
+	 * @throws IOException If a BTree file cannot be read
+	 */
+	private static Comparison compare(String firstFileName, String secondFileName, long low, long high,
+			PrintStream differences) throws IOException {
+		BTree first = new BTree(firstFileName);
+		try {
+			BTree second = new BTree(secondFileName);
+			try {
+				return join(first, second, low, high, differences);
+			} finally {
+				second.close();
+			}
+		} finally {
+			first.close();
+		}
+	}
+
+	/**
+	 * Helper method for compare. Merge joins the sequences of two open BTrees with keys
+	 * in [low, high).
+	 */
+	private static Comparison join(BTree first, BTree second, long low, long high, PrintStream differences)
+			throws IOException {
+		Comparison result = new Comparison();
+		int k = first.getK();
+		BTree.TreeIterator firstIterator = first.iterator(low), secondIterator = second.iterator(low);
+		TreeObject a = next(firstIterator, high), b = next(secondIterator, high);
+		while (a != null || b != null) {
+			if (b == null || (a != null && a.getKey() < b.getKey())) {
+				result.onlyFirst++;
+				result.totalFirst += a.getFrequency();
+				result.maximums += a.getFrequency();
+				if (differences != null)
+					differences.println(new TreeObject(a.getKey(), k).getSequence()+"\t"+a.getFrequency()+"\t0");
+				a = next(firstIterator, high);
+			}
+			else if (a == null || b.getKey() < a.getKey()) {
+				result.onlySecond++;
+				result.totalSecond += b.getFrequency();
+				result.maximums += b.getFrequency();
+				if (differences != null)
+					differences.println(new TreeObject(b.getKey(), k).getSequence()+"\t0\t"+b.getFrequency());
+				b = next(secondIterator, high);
+			}
+			else {
+				result.shared++;
+				result.totalFirst += a.getFrequency();
+				result.totalSecond += b.getFrequency();
+				result.minimums += Math.min(a.getFrequency(), b.getFrequency());
+				result.maximums += Math.max(a.getFrequency(), b.getFrequency());
+				a = next(firstIterator, high);
+				b = next(secondIterator, high);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the next TreeObject of an iterator (null once the keys reach high).
+	 */
+	private static TreeObject next(BTree.TreeIterator iterator, long high) throws IOException {
+		TreeObject object = iterator.next();
+		return (object != null && object.getKey() < high) ? object : null;
+	}
+
+	/**
+	 * Compare two BTree files, using the given number of threads.
+	 * @param differencesFileName Where to write the sequences that are only in one of the
+	 * trees (null to not write them)
+	 * @throws IOException If a BTree file cannot be read or the differences cannot be written
+	 */
+	private static Comparison compare(String firstFileName, String secondFileName, int threads,
+			String differencesFileName) throws IOException {
+		//split the key space at evenly spaced keys of the first tree's root
+		ArrayList<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		BTree first = new BTree(firstFileName);
+		try {
+			BTree second = new BTree(secondFileName);
+			try {
+				if (first.getK() != second.getK())
+					throw new IllegalArgumentException("Both BTree files must have the same sequence length");
+			} finally {
+				second.close();
+			}
+			BTree.BTreeNode root = first.getRoot();
+			for (int t=1; t<threads; t++) {
+				long key = (root.getNumKeys() > 0) ? root.getTreeObject(t*root.getNumKeys()/threads).getKey() : 0;
+				if (key > bounds.get(bounds.size()-1))
+					bounds.add(key);
+			}
+		} finally {
+			first.close();
+		}
+		bounds.add(Long.MAX_VALUE);
+
+		int ranges = bounds.size()-1;
+		Comparison[] results = new Comparison[ranges];
+		IOException[] failures = new IOException[ranges];
+		File[] parts = new File[ranges];
+		Thread[] workers = new Thread[ranges];
+		for (int r=0; r<ranges; r++) {
+			int range = r;
+			if (differencesFileName != null)
+				parts[r] = new File(differencesFileName+".part"+r);
+			workers[r] = new Thread(() -> {
+				try (PrintStream differences = (parts[range] != null)
+						? new PrintStream(new BufferedOutputStream(new FileOutputStream(parts[range]), 1<<16)) : null) {
+					results[range] = compare(firstFileName, secondFileName, bounds.get(range), bounds.get(range+1), differences);
+				}
+				catch (IOException e) {
+					failures[range] = e;
+				}
+			}, "GeneBankCompare-"+r);
+			workers[r].start();
+		}
+
+		Comparison total = new Comparison();
+		for (int r=0; r<ranges; r++) {
+			try {
+				workers[r].join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while comparing", e);
+			}
+			if (failures[r] != null)
+				throw failures[r];
+			total.add(results[r]);
+		}
+
+		//the ranges are in key order, so the differences are too
+		if (differencesFileName != null) {
+			try (FileOutputStream out = new FileOutputStream(differencesFileName)) {
+				for (File part : parts) {
+					Files.copy(part.toPath(), out);
+					part.delete();
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Return a ratio, or 0 if there is nothing to divide by.
+	 */
+	private static double ratio(long numerator, long denominator) {
+		return (denominator > 0) ? (double) numerator/denominator : 0;
+	}
+
+	/**
+	 * Run the program.
+	 */
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		String firstFileName = null, secondFileName = null, differencesFileName = null;
+
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--threads")) {
+					threads = Integer.parseInt(args[++i]);
+					if (threads < 1)
+						throw new IllegalArgumentException("The number of threads must be positive");
+				}
+				else if (args[i].equals("--differences"))
+					differencesFileName = args[++i];
+				else if (firstFileName == null)
+					firstFileName = args[i];
+				else if (secondFileName == null)
+					secondFileName = args[i];
+				else
+					throw new IllegalArgumentException("Unexpected argument "+args[i]);
+			}
+			if (secondFileName == null)
+				throw new IllegalArgumentException("Two BTree files must be specified");
+			for (String name : new String[] {firstFileName, secondFileName}) {
+				if (!new File(name).exists())
+					throw new FileNotFoundException(name);
+			}
+
+			Comparison c = compare(firstFileName, secondFileName, threads, differencesFileName);
+			long firstDistinct = c.shared+c.onlyFirst, secondDistinct = c.shared+c.onlySecond;
+			System.out.println("Distinct sequences: "+firstDistinct+" in "+firstFileName+", "+secondDistinct+" in "+secondFileName);
+			System.out.println("Total sequences: "+c.totalFirst+" in "+firstFileName+", "+c.totalSecond+" in "+secondFileName);
+			System.out.println("Shared: "+c.shared);
+			System.out.println("Only in "+firstFileName+": "+c.onlyFirst);
+			System.out.println("Only in "+secondFileName+": "+c.onlySecond);
+			System.out.println(String.format("Jaccard similarity: %.6f", ratio(c.shared, c.shared+c.onlyFirst+c.onlySecond)));
+			System.out.println(String.format("Weighted Jaccard similarity: %.6f", ratio(c.minimums, c.maximums)));
+			System.out.println(String.format("Containment of %s in %s: %.6f", firstFileName, secondFileName, ratio(c.shared, firstDistinct)));
+			System.out.println(String.format("Containment of %s in %s: %.6f", secondFileName, firstFileName, ratio(c.shared, secondDistinct)));
+		}
+		catch (FileNotFoundException e) {
+			System.out.println("Error: Please make sure that the filename is valid.");
+			e.printStackTrace();
+		}
+		catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			e.printStackTrace();
+			printUsage();
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error: Could not compare the BTree files.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method which will print the usage statement to the
+	 * console.
+	 */
+	private static void printUsage() {
+		System.out.println("Usage: java GeneBankCompare [--threads <n>] [--differences <output file>] <btree file> <btree file>"
+				+ "\nNote: Both BTree files must have the same sequence length. --differences writes every sequence"
+				+ "\n      that is only in one of them as \"sequence<tab>frequency in first<tab>frequency in second\"."
+				+ "\n      --threads defaults to the number of processors.");
+	}
+}
@@ -1,7 +1,10 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * This class will allow the user to create a new GeneBank B-Tree
@@ -9,16 +12,146 @@ import java.util.Scanner;
  */
 public class GeneBankCreateBTree {
 
+	private static final int RING_SIZE = 1<<16;	//number of keys the parser can get ahead of the inserts
+	private static final int BATCH_SIZE = 1024;	//number of keys inserted per batch
+	private static final int DEFAULT_DENSE_MAX_K = 12;	//largest sequence length counted with a DenseIndex by default
+	private static final int DEFAULT_HEAVY_HITTERS = 100;	//most frequent sequences tracked by a sketch
+	private static final int DEFAULT_COUNT_MEGABYTES = 256;	//memory for counting with --min-count before spilling to disk
+
+	/**
+	 * Something the parsed keys can be inserted into (a BTree or a DenseIndex).
+	 */
+	interface KeySink {
+		void insert(long key) throws IOException;
+	}
+
+	/**
+	 * Records a checkpoint of a BTree build every interval sequences, so that the build
+	 * can be continued with --resume after it is killed.
+	 */
+	static class Checkpointer {
+		final BTree btree;
+		final long interval;		//number of sequences between checkpoints
+		final long gbkLength;		//length of the gbk file, to make sure a resumed build reads the same file
+		long sequences;				//number of sequences inserted so far
+		KmerParser.State start;		//where parsing starts (null for the start of the file)
+		final ConcurrentLinkedQueue<Mark> marks = new ConcurrentLinkedQueue<Mark>();
+
+		Checkpointer(BTree btree, long interval, File gbkFile) {
+			this.btree = btree;
+			this.interval = interval;
+			gbkLength = gbkFile.length();
+		}
+
+		/**
+		 * Continue the checkpoints of a build from its last checkpoint.
+		 */
+		Checkpointer(BTree btree, byte[] state, File gbkFile) {
+			ByteBuffer buffer = ByteBuffer.wrap(state);
+			this.btree = btree;
+			gbkLength = buffer.getLong();
+			interval = buffer.getLong();
+			sequences = buffer.getLong();
+			start = KmerParser.State.get(buffer);
+			if (gbkFile.length() != gbkLength)
+				throw new IllegalArgumentException(gbkFile+" is not the gbk file the BTree was being built from");
+		}
+
+		/**
+		 * Record a checkpoint at a mark reached by the inserts.
+		 */
+		void checkpoint(Mark mark) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(24+KmerParser.State.SIZE);
+			buffer.putLong(gbkLength);
+			buffer.putLong(interval);
+			buffer.putLong(mark.sequences);
+			mark.state.put(buffer);
+			btree.checkpoint(buffer.array());
+		}
+	}
+
+	/**
+	 * The state of the parser right after it produced a given number of sequences.
+	 */
+	private static class Mark {
+		final long sequences;
+		final KmerParser.State state;
+
+		Mark(long sequences, KmerParser.State state) {
+			this.sequences = sequences;
+			this.state = state;
+		}
+	}
+
 	/**
 	 * Run the program.
 	 */
 	public static void main(String[] args) {
 		
 		int cacheStatus,degree,seqLength,cacheSize,debugLevel;	
+		int denseMaxK = DEFAULT_DENSE_MAX_K;
+		long checkpointInterval = 0;	//0 means no checkpoints
+		boolean copyOnWrite = false;
+		boolean autoTune = false;
+		String traceFileName = null;
+		int sketchMegabytes = 0;	//0 means count exactly
+		int heavyHitters = DEFAULT_HEAVY_HITTERS;
+		boolean bplus = false;
+		int minCount = 0;	//0 means keep every sequence
+		int countMegabytes = DEFAULT_COUNT_MEGABYTES;
 		File filename;
 		
 		//Initialize variables
 		try {
+			if (args.length > 0 && args[0].equals("--append")) {
+				appendToBTree(args);
+				return;
+			}
+			if (args.length > 0 && args[0].equals("--resume")) {
+				resumeBTree(args);
+				return;
+			}
+
+			//pull out the options, leaving the positional arguments
+			ArrayList<String> positional = new ArrayList<String>();
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--dense-max-k")) {
+					denseMaxK = Integer.parseInt(args[++i]);
+					if (denseMaxK < 0 || denseMaxK > DenseIndex.MAX_K)
+						throw new IllegalArgumentException("--dense-max-k must be between 0 and "+DenseIndex.MAX_K);
+				}
+				else if (args[i].equals("--auto"))
+					autoTune = true;
+				else if (args[i].equals("--trace"))
+					traceFileName = args[++i];
+				else if (args[i].equals("--sketch")) {
+					sketchMegabytes = Integer.parseInt(args[++i]);
+					if (sketchMegabytes < 1)
+						throw new IllegalArgumentException("The sketch size must be positive");
+				}
+				else if (args[i].equals("--heavy-hitters"))
+					heavyHitters = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--bplus"))
+					bplus = true;
+				else if (args[i].equals("--min-count")) {
+					minCount = Integer.parseInt(args[++i]);
+					if (minCount < 1)
+						throw new IllegalArgumentException("The minimum count must be positive");
+				}
+				else if (args[i].equals("--count-memory"))
+					countMegabytes = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--copy-on-write"))
+					copyOnWrite = true;
+				else if (args[i].equals("--checkpoint")) {
+					checkpointInterval = Long.parseLong(args[++i]);
+					if (checkpointInterval < 1)
+						throw new IllegalArgumentException("The checkpoint interval must be positive");
+				}
+				else
+					positional.add(args[i]);
+			}
+			args = positional.toArray(new String[0]);
+
 			cacheStatus = Integer.parseInt(args[0]);
 			if (cacheStatus!=0 && cacheStatus!=1) {	//verify value of cacheStatus
 				throw new IllegalArgumentException("Cache status must be 0 (without cache) or 1 (with cache)");
@@ -48,28 +181,76 @@ public class GeneBankCreateBTree {
 				debugLevel = Integer.parseInt(args[4]);
 			}
 			
-			//initialize scanner and BTree
-			Scanner scan = new Scanner(filename);
-			scan.useDelimiter("\\s*ORIGIN\\s*|\\s*//\\s*");	//use delimiters ORIGIN and //
-			BTree btree = new BTree(degree,seqLength,args[2]);
-			
-			int index = 0;
-			//scan and insert patterns into BTree
-			while (scan.hasNext()) {
-				String data = scan.next();
-				if(index % 2 == 1) {
-					data = data.replaceAll("[^atcgn]", "");	//process data (only keep a, t, c, g, and n)
-					for (int i = 0; i <= data.length()-seqLength; i++) {
-						String sequence = data.substring(i,i+seqLength);
-						System.out.println(sequence);
-						btree.BTreeInsert(sequence);
-					}
-				}
-				index++;
+			if (minCount > 0 && (sketchMegabytes > 0 || bplus || checkpointInterval > 0))
+				throw new IllegalArgumentException("--min-count cannot be combined with --sketch, --bplus or --checkpoint");
+			if (copyOnWrite && checkpointInterval == 0)
+				throw new IllegalArgumentException("--copy-on-write needs --checkpoint");
+
+			//approximate counts in a fixed amount of memory
+			if (sketchMegabytes > 0) {
+				CountMinSketch sketch = new CountMinSketch(seqLength, sketchMegabytes, heavyHitters, args[2]);
+				insertSequences(sketch::insert, filename, seqLength, debugLevel==2, null);
+				sketch.save();
+				if (debugLevel!=0)
+					sketch.createDumpFile();
+				return;
+			}
+
+			//a B+Tree with every frequency in its leaves, for sequential scans
+			if (bplus) {
+				BPlusTree tree = new BPlusTree(seqLength, args[2]);
+				insertSequences(tree::insert, filename, seqLength, debugLevel==2, null);
+				if (debugLevel!=0)
+					tree.createDumpFile();
+				tree.close();
+				return;
+			}
+
+			//count every sequence first, then bulk load only the ones that occur often enough
+			if (minCount > 0) {
+				BTree btree = new BTree(degree,seqLength,args[2]);
+				if (traceFileName != null)
+					btree.startTrace(traceFileName);
+				insertCounted(btree, filename, seqLength, minCount, countMegabytes, debugLevel==2);
+				btree.finalize();
+				if (debugLevel!=0)
+					btree.createDumpFile();
+				return;
+			}
+
+			//small sequence lengths are counted directly in an array instead of a BTree, unless
+			//an option that only a BTree has was given
+			boolean btreeOptions = degree != 0 || cacheStatus == 1 || autoTune || traceFileName != null || checkpointInterval > 0;
+			if (seqLength <= denseMaxK && !btreeOptions) {
+				DenseIndex dense = new DenseIndex(seqLength, args[2]);
+				insertSequences(dense::insert, filename, seqLength, debugLevel==2, null);
+				dense.save();
+				if (debugLevel!=0)
+					dense.createDumpFile();
+				return;
+			}
+
+			//initialize BTree, with the degree and cache size that did best on a sample if --auto is given
+			BTree btree;
+			if (autoTune) {
+				int[] best = AutoTuner.tuneBuild(filename, seqLength);
+				btree = (best[1] > 0) ? new BTree(best[0],seqLength,args[2],best[1]) : new BTree(best[0],seqLength,args[2]);
+			}
+			else
+				btree = new BTree(degree,seqLength,args[2]);
+			if (traceFileName != null)
+				btree.startTrace(traceFileName);
+			Checkpointer checkpoints = null;
+			if (checkpointInterval > 0) {
+				if (copyOnWrite)
+					btree.enableCopyOnWrite();
+				else
+					btree.enableCheckpoints();
+				checkpoints = new Checkpointer(btree, checkpointInterval, filename);
 			}
 			
+			insertSequences(btree::BTreeInsert, filename, seqLength, debugLevel==2, checkpoints);
 			btree.finalize();			
-			scan.close();	//close the scanner
 			
 			//if debug is specified, make dump file
 			if (debugLevel!=0)
@@ -81,7 +262,7 @@ public class GeneBankCreateBTree {
 			System.out.println("Error: Please make sure that the filename is valid.");
 			e.printStackTrace();
 		}
-		catch(IllegalArgumentException e) {
+		catch(IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
 			e.printStackTrace();
 			printUsage();
 			System.exit(1);
@@ -91,13 +272,208 @@ public class GeneBankCreateBTree {
 		}
 	}
 	
+	/**
+	 * Count every sequence of a gbk file (in bounded memory, spilling sorted runs to disk
+	 * if needed), then fill a new BTree with the sequences that occur at least minCount
+	 * times, in key order, and record minCount in its header.
+	 * @param btree The new, empty BTree
+	 * @param countMegabytes The memory to count in before spilling
+	 */
+	static void insertCounted(BTree btree, File gbkFile, int seqLength, int minCount, int countMegabytes,
+			boolean printSequences) throws IOException {
+		KmerCounter counter = new KmerCounter(countMegabytes);
+		insertSequences(counter::add, gbkFile, seqLength, printSequences, null);
+		BTree.BulkLoader loader = btree.bulkLoader();
+		counter.forEach((key, count) -> {
+			if (count >= minCount)
+				loader.add(key, count);
+		});
+		loader.finish();
+		btree.setMinCount(minCount);
+	}
+
+	/**
+	 * Scan a gbk file and insert each of its sequences of length seqLength into the BTree.
+	 * The file is read (and decompressed, if it ends in .gz) on one thread, parsed into
+	 * keys on another, and the keys are handed to this thread through a ring buffer to
+	 * be inserted in batches.
+	 * @param btree The BTree (or DenseIndex) to insert into
+	 * @param gbkFile The gbk file to scan
+	 * @param seqLength The sequence length of the BTree
+	 * @param printSequences If true, print every sequence as it is inserted (debugging only)
+	 * @param checkpoints Records the checkpoints of the build (null for no checkpoints)
+	 * @return The number of sequences inserted
+	 */
+	static long insertSequences(KeySink btree, File gbkFile, int seqLength, boolean printSequences,
+			Checkpointer checkpoints) throws IOException {
+		InputStream in = new GeneBankInputStream(gbkFile);
+		LongRingBuffer ring = new LongRingBuffer(RING_SIZE);
+		KmerParser.State start = (checkpoints != null) ? checkpoints.start : null;
+		if (start != null && in.skip(start.getOffset()) != start.getOffset()) {
+			in.close();
+			throw new IOException(gbkFile+" is shorter than when the checkpoint was recorded");
+		}
+
+		Thread parser = new Thread(() -> {
+			try {
+				KmerParser kmers = (start != null) ? new KmerParser(in, seqLength, start) : new KmerParser(in, seqLength);
+				long produced = (checkpoints != null) ? checkpoints.sequences : 0;
+				long key;
+				while ((key = kmers.next()) != -1) {
+					//the mark is queued before its key, so it is there when the key is inserted
+					if (checkpoints != null && ++produced % checkpoints.interval == 0)
+						checkpoints.marks.add(new Mark(produced, kmers.getState()));
+					ring.put(key);
+				}
+				ring.close();
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				ring.fail(e);
+			}
+		}, "GeneBankParser");
+		parser.setDaemon(true);
+		parser.start();
+
+		long[] batch = new long[BATCH_SIZE];
+		long inserted = 0;
+		try {
+			int n;
+			while ((n = ring.take(batch)) != -1) {
+				inserted += n;
+				for (int i = 0; i < n; i++) {
+					if (printSequences)
+						System.out.println(new TreeObject(batch[i], seqLength).getSequence());
+					btree.insert(batch[i]);
+					if (checkpoints != null) {
+						Mark mark = checkpoints.marks.peek();
+						if (++checkpoints.sequences == (mark != null ? mark.sequences : -1)) {
+							checkpoints.marks.poll();
+							checkpoints.checkpoint(mark);
+						}
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			ring.fail(e);	//make the parser give up too
+			throw e;
+		} finally {
+			in.close();
+		}
+		return inserted;
+	}
+
+	/**
+	 * Insert the sequences of more gbk files into an existing BTree file, in place.
+	 * The degree and sequence length are read from the BTree file.
+	 * @param args The command line arguments, starting with --append
+	 */
+	private static void appendToBTree(String[] args) throws IOException {
+		int cacheSize = 0, debugLevel = 0;
+		String btreeFileName = null;
+		ArrayList<File> gbkFiles = new ArrayList<File>();
+
+		for (int i=1; i<args.length; i++) {
+			if (args[i].equals("--cache")) {
+				cacheSize = Integer.parseInt(args[++i]);
+				if (cacheSize < 1)
+					throw new IllegalArgumentException("When using cache, a positive cache size must be specified");
+			}
+			else if (args[i].equals("--debug"))
+				debugLevel = Integer.parseInt(args[++i]);
+			else if (btreeFileName == null)
+				btreeFileName = args[i];
+			else
+				gbkFiles.add(new File(args[i]));
+		}
+		if (btreeFileName == null || gbkFiles.isEmpty())
+			throw new IllegalArgumentException("A BTree file and at least one gbk file must be specified");
+		if (!new File(btreeFileName).exists())
+			throw new FileNotFoundException(btreeFileName);
+
+		BTree btree = (cacheSize > 0) ? new BTree(btreeFileName, cacheSize) : new BTree(btreeFileName);
+		if (btree.getMinCount() > 0) {
+			btree.close();
+			throw new IllegalArgumentException("Sequences cannot be appended to a BTree built with --min-count");
+		}
+		for (File gbkFile : gbkFiles)
+			insertSequences(btree::BTreeInsert, gbkFile, btree.getK(), debugLevel==2, null);
+		btree.finalize();
+
+		if (debugLevel!=0)
+			btree.createDumpFile();
+	}
+
+	/**
+	 * Continue a BTree build that was recorded with --checkpoint from its last checkpoint.
+	 * Everything inserted after that checkpoint is undone first, and the gbk file is read
+	 * from where the checkpoint was recorded.
+	 * @param args The command line arguments, starting with --resume
+	 */
+	private static void resumeBTree(String[] args) throws IOException {
+		int cacheSize = 0, debugLevel = 0;
+		String btreeFileName = null;
+		File gbkFile = null;
+
+		for (int i=1; i<args.length; i++) {
+			if (args[i].equals("--cache")) {
+				cacheSize = Integer.parseInt(args[++i]);
+				if (cacheSize < 1)
+					throw new IllegalArgumentException("When using cache, a positive cache size must be specified");
+			}
+			else if (args[i].equals("--debug"))
+				debugLevel = Integer.parseInt(args[++i]);
+			else if (btreeFileName == null)
+				btreeFileName = args[i];
+			else if (gbkFile == null)
+				gbkFile = new File(args[i]);
+			else
+				throw new IllegalArgumentException("Unexpected argument "+args[i]);
+		}
+		if (btreeFileName == null || gbkFile == null)
+			throw new IllegalArgumentException("A BTree file and the gbk file it was being built from must be specified");
+		if (!new File(btreeFileName).exists())
+			throw new FileNotFoundException(btreeFileName);
+		if (!gbkFile.exists())
+			throw new FileNotFoundException(gbkFile.getPath());
+
+		BTree btree = (cacheSize > 0) ? new BTree(btreeFileName, cacheSize) : new BTree(btreeFileName);
+		Checkpointer checkpoints = new Checkpointer(btree, btree.resumeFromCheckpoint(), gbkFile);
+		insertSequences(btree::BTreeInsert, gbkFile, btree.getK(), debugLevel==2, checkpoints);
+		btree.finalize();
+
+		if (debugLevel!=0)
+			btree.createDumpFile();
+	}
 
 	/**
 	 * Helper method which will print the usage statement to the
 	 * console. 
 	 */
 	private static void printUsage() {
-		System.out.println("Usage: java GeneBankCreateBTree <0/1(no/with Cache)> <degree> <gbk file> <sequence length> [<cache size>] [<debug level>]"
-				+ "\nNote: If using with Cache, cache size must be specified.");
+		System.out.println("Usage: java GeneBankCreateBTree [--dense-max-k <k>] [--checkpoint <sequences> [--copy-on-write]] [--auto] [--trace <trace file>]"
+				+ " [--sketch <megabytes> [--heavy-hitters <n>]] [--bplus] [--min-count <n> [--count-memory <megabytes>]] <0/1(no/with Cache)> <degree> <gbk file> <sequence length> [<cache size>] [<debug level>]"
+				+ "\n       java GeneBankCreateBTree --append <btree file> [--cache <cache size>] [--debug <debug level>] <gbk file> [<gbk file> ...]"
+				+ "\n       java GeneBankCreateBTree --resume <btree file> [--cache <cache size>] [--debug <debug level>] <gbk file>"
+				+ "\nNote: If using with Cache, cache size must be specified. Gzipped gbk files (.gz) are accepted."
+				+ "\n      Debug level 1 writes a dump file; debug level 2 also prints every sequence as it is inserted."
+				+ "\n      Sequence lengths up to --dense-max-k (default "+DEFAULT_DENSE_MAX_K+", 0 to always build a BTree) are counted"
+				+ "\n      in a dense index file, <gbk file>.dense.data.<sequence length>, which GeneBankSearch also accepts."
+				+ "\n      A BTree is built anyway if a degree other than 0, a cache, --checkpoint, --auto or --trace is given."
+				+ "\n      --append inserts the sequences of more gbk files into an existing BTree file."
+				+ "\n      --checkpoint records a checkpoint every <sequences> sequences while building a BTree; if the"
+				+ "\n      build is killed, --resume continues it from the last checkpoint. With --copy-on-write, nodes of the"
+				+ "\n      last checkpoint are never overwritten, so the BTree file can be searched while it is being built"
+				+ "\n      (searches see the BTree as it was at the last checkpoint)."
+				+ "\n      --auto tries several degrees and cache sizes on the start of the gbk file and builds the BTree"
+				+ "\n      with the fastest one, in place of the given degree and cache size."
+				+ "\n      --trace logs every node read and write of the build to <trace file> for GeneBankTraceReplay."
+				+ "\n      --sketch counts approximately in a Count-Min sketch of <megabytes> and tracks the <n> (default "
+				+ DEFAULT_HEAVY_HITTERS+") most"
+				+ "\n      frequent sequences, saved as <gbk file>.sketch.data.<sequence length>, which GeneBankSearch also accepts."
+				+ "\n      With a debug level, the most frequent sequences are written to <gbk file>.sketch.dump.<sequence length>."
+				+ "\n      --bplus builds a B+Tree (degree and cache size are ignored) in <gbk file>.bplus.data.<sequence length>,"
+				+ "\n      with its dump in <gbk file>.bplus.dump.<sequence length>."
+				+ "\n      --min-count counts every sequence first (in <megabytes> of memory, default "+DEFAULT_COUNT_MEGABYTES+", spilling"
+				+ "\n      sorted runs to temporary files beyond that) and builds a BTree of only the sequences that occur at"
+				+ "\n      least <n> times, at any sequence length. The threshold is recorded in the header.");
 	}
 }
@@ -0,0 +1,67 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Exports a finished BTree file to a sorted array index file (see SortedArrayIndex),
+ * which GeneBankSearch can search without following node pointers, or with --bplus to
+ * a B+Tree file (see BPlusTree) whose leaves can be scanned in order.
+ */
+public class GeneBankExportSorted {
+
+	/**
+	 * Run the program.
+	 */
+	public static void main(String[] args) {
+		String btreeFileName = null, outputFileName = null;
+		boolean bplus = false;
+
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--bplus"))
+					bplus = true;
+				else if (btreeFileName == null)
+					btreeFileName = args[i];
+				else if (outputFileName == null)
+					outputFileName = args[i];
+				else
+					throw new IllegalArgumentException("Unexpected argument "+args[i]);
+			}
+			if (btreeFileName == null)
+				throw new IllegalArgumentException("A BTree file must be specified");
+			if (!new File(btreeFileName).exists())
+				throw new FileNotFoundException(btreeFileName);
+
+			BTree btree = new BTree(btreeFileName);
+			if (outputFileName == null)
+				outputFileName = BTree.getGbkFileName(btreeFileName)+(bplus ? ".bplus.data." : ".sorted.data.")+btree.getK();
+			if (bplus)
+				BPlusTree.export(btree, outputFileName);
+			else
+				SortedArrayIndex.export(btree, outputFileName);
+			btree.close();
+		}
+		catch (FileNotFoundException e) {
+			System.out.println("Error: Please make sure that the filename is valid.");
+			e.printStackTrace();
+		}
+		catch (IllegalArgumentException e) {
+			e.printStackTrace();
+			printUsage();
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error: Could not export the BTree file.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method which will print the usage statement to the
+	 * console.
+	 */
+	private static void printUsage() {
+		System.out.println("Usage: java GeneBankExportSorted [--bplus] <btree file> [<output file>]"
+				+ "\nNote: Without an output file, the index is written to <gbk file>.sorted.data.<sequence length>"
+				+ "\n      (<gbk file>.bplus.data.<sequence length> with --bplus)");
+	}
+}
@@ -0,0 +1,177 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a gbk file on a separate thread so that reading (and decompressing) the file
+ * overlaps with parsing and inserting the sequences. Files ending in .gz are
+ * decompressed, including files made of several concatenated gzip members.
+ *
+ * The reader thread fills buffers of CHUNK_SIZE bytes and hands them over through a
+ * bounded queue, so it can never get more than QUEUE_SIZE buffers ahead of the parser.
+ */
+public class GeneBankInputStream extends InputStream {
+
+	private static final int CHUNK_SIZE = 1<<16;
+	private static final int QUEUE_SIZE = 8;
+	private static final byte[] END = new byte[0];	//marks the end of the file in the queue
+
+	private final InputStream source;
+	private final ArrayBlockingQueue<byte[]> queue;
+	private final Thread reader;
+	private volatile IOException error;	//set by the reader thread if reading fails
+
+	private byte[] chunk;	//the buffer currently being read from
+	private int position;	//position in chunk
+	private int length;		//number of valid bytes in chunk
+
+	/**
+	 * Open a gbk file and start reading it in the background.
+	 * @param gbkFile The gbk file (or .gbk.gz file) to read
+	 * @throws IOException If the file cannot be opened
+	 */
+	public GeneBankInputStream(File gbkFile) throws IOException {
+		InputStream in = new FileInputStream(gbkFile);
+		if (gbkFile.getName().endsWith(".gz")) {
+			try {
+				in = new GZIPInputStream(in, CHUNK_SIZE);	//reads every member of a concatenated file
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+		source = in;
+		queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+		chunk = END;
+
+		reader = new Thread(() -> readFile(), "GeneBankInputStream-"+gbkFile.getName());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Body of the reader thread: fill chunks and queue them until the end of the file.
+	 * Only this thread uses source, so it is also the one that closes it.
+	 */
+	private void readFile() {
+		try {
+			readChunks();
+		} finally {
+			try {
+				source.close();
+			} catch (IOException e) {
+				if (error == null)
+					error = e;
+			}
+		}
+	}
+
+	/**
+	 * Helper method for readFile. Queue the chunks of the file, then END.
+	 */
+	private void readChunks() {
+		try {
+			while (true) {
+				byte[] buffer = new byte[CHUNK_SIZE];
+				int n = 0, count;
+				while (n < CHUNK_SIZE && (count = source.read(buffer, n, CHUNK_SIZE-n)) > 0)
+					n += count;
+				if (n == 0)
+					break;
+				if (n < CHUNK_SIZE) {
+					byte[] last = new byte[n];
+					System.arraycopy(buffer, 0, last, 0, n);
+					buffer = last;
+				}
+				queue.put(buffer);
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			return;	//the stream was closed
+		}
+
+		try {
+			queue.put(END);
+		} catch (InterruptedException e) {
+			//the stream was closed
+		}
+	}
+
+	/**
+	 * Make sure there are bytes left in the current chunk.
+	 * @return false at the end of the file
+	 */
+	private boolean fill() throws IOException {
+		if (position < length)
+			return true;
+		if (chunk == null)
+			return false;
+		try {
+			chunk = queue.take();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading gbk file", e);
+		}
+		if (chunk == END) {
+			chunk = null;
+			if (error != null)
+				throw error;
+			return false;
+		}
+		position = 0;
+		length = chunk.length;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill())
+			return -1;
+		return chunk[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!fill())
+			return -1;
+		int n = Math.min(len, length-position);
+		System.arraycopy(chunk, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && fill()) {
+			int count = (int) Math.min(n-skipped, length-position);
+			position += count;
+			skipped += count;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return length-position;
+	}
+
+	/**
+	 * Stop the reader thread and wait for it to close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		reader.interrupt();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing gbk file", e);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several BTree files with the same sequence length into one new BTree file,
+ * adding up the frequencies of sequences that appear in more than one of them.
+ *
+ * The input trees are read in sorted order at the same time (a k-way merge), and the
+ * merged sequences are written straight into a new, completely filled BTree, so only
+ * one path per input tree is ever held in memory and the output is written sequentially.
+ */
+public class GeneBankMergeBTree {
+
+	/**
+	 * One of the input trees, positioned at its current TreeObject.
+	 */
+	private static class Source implements Comparable<Source> {
+		BTree.TreeIterator iterator;
+		TreeObject current;
+
+		Source(BTree btree) throws IOException {
+			iterator = btree.iterator();
+			current = iterator.next();
+		}
+
+		public int compareTo(Source other) {
+			return Long.compare(current.getKey(), other.current.getKey());
+		}
+	}
+
+	/**
+	 * Merge the given BTree files into a new BTree.
+	 * @param btreeFileNames The BTree files to merge
+	 * @param degree The degree of the new BTree (0 for the optimal degree)
+	 * @param outputName The name of the new BTree; the file will be named
+	 * "<outputName>.btree.data.<k>.<degree>"
+	 * @return The new BTree
+	 * @throws IOException If a BTree file cannot be read or written
+	 */
+	public static BTree merge(ArrayList<String> btreeFileNames, int degree, String outputName) throws IOException {
+		int k = 0;
+		PriorityQueue<Source> sources = new PriorityQueue<Source>();
+		ArrayList<BTree> inputs = new ArrayList<BTree>();	//closed once the merge is done or fails
+		try {
+			for (String name : btreeFileNames) {
+				if (!new File(name).exists())
+					throw new FileNotFoundException(name);
+				BTree btree = new BTree(name);
+				inputs.add(btree);
+				if (k != 0 && btree.getK() != k)
+					throw new IllegalArgumentException("All BTree files must have the same sequence length");
+				k = btree.getK();
+				Source source = new Source(btree);
+				if (source.current != null)
+					sources.add(source);
+			}
+
+			BTree merged = new BTree(degree, k, outputName);
+			BTree.BulkLoader loader = merged.bulkLoader();
+			while (!sources.isEmpty()) {
+				//take every source positioned at the smallest key
+				long key = sources.peek().current.getKey();
+				int frequency = 0;
+				while (!sources.isEmpty() && sources.peek().current.getKey() == key) {
+					Source source = sources.poll();
+					frequency += source.current.getFrequency();
+					source.current = source.iterator.next();
+					if (source.current != null)
+						sources.add(source);
+				}
+				loader.add(key, frequency);
+			}
+			loader.finish();
+			merged.finalize();
+			return merged;
+		} finally {
+			for (BTree btree : inputs)
+				btree.close();
+		}
+	}
+
+	/**
+	 * Run the program.
+	 */
+	public static void main(String[] args) {
+		int degree = 0, debugLevel = 0;
+		String outputName = null;
+		ArrayList<String> btreeFileNames = new ArrayList<String>();
+
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--degree")) {
+					degree = Integer.parseInt(args[++i]);
+					if (degree<0)	//verify value of degree
+						throw new IllegalArgumentException("Degree must be non-negative");
+				}
+				else if (args[i].equals("--debug"))
+					debugLevel = Integer.parseInt(args[++i]);
+				else if (outputName == null)
+					outputName = args[i];
+				else
+					btreeFileNames.add(args[i]);
+			}
+			if (outputName == null || btreeFileNames.size() < 2)
+				throw new IllegalArgumentException("An output name and at least two BTree files must be specified");
+
+			BTree merged = merge(btreeFileNames, degree, outputName);
+
+			//if debug is specified, make dump file
+			if (debugLevel!=0)
+				merged.createDumpFile();
+		}
+		catch (FileNotFoundException e) {
+			System.out.println("Error: Please make sure that the filename is valid.");
+			e.printStackTrace();
+		}
+		catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			e.printStackTrace();
+			printUsage();
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error: Could not merge the BTree files.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method which will print the usage statement to the
+	 * console.
+	 */
+	private static void printUsage() {
+		System.out.println("Usage: java GeneBankMergeBTree [--degree <degree>] [--debug <debug level>] <output name> <btree file> <btree file> [<btree file> ...]"
+				+ "\nNote: All BTree files must have the same sequence length. The merged BTree is written to"
+				+ "\n      <output name>.btree.data.<sequence length>.<degree>");
+	}
+}
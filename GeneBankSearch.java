@@ -1,27 +1,102 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
  * Allows the user to search a BTree using a btree and query file. *
+ * Dense index files (written by GeneBankCreateBTree for small sequence lengths),
+ * sorted array files and sketch files are detected automatically and can be used
+ * in place of the btree file. A gbk file can be given in place of the query file, in
+ * which case every sequence of the genome is searched for.
  */
 public class GeneBankSearch {
 
+	private static final int GENOME_BATCH_SIZE = 1<<16;	//sequences of a gbk query file looked up together
+
 	@SuppressWarnings("unused")
 	public static void main(String[] args) {
 		int cacheStatus, cacheSize, debugLevel;
+		int prefetchDepth = 0;	//0 means search one query at a time
+		int keyCacheSize = 0;	//0 means no key cache
+		ResultWriter.Format format = ResultWriter.Format.TEXT;
+		boolean writeMisses = false;
+		boolean autoTune = false;
+		boolean printStats = false;
+		boolean coverage = false;
+		String traceFileName = null;
 		String btreeFileName;
 		File query;
 		
 		try {
+			//pull out the options, leaving the positional arguments
+			ArrayList<String> positional = new ArrayList<String>();
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--prefetch")) {
+					if (i+1 == args.length)
+						throw new IllegalArgumentException("--prefetch requires a queue depth");
+					prefetchDepth = Integer.parseInt(args[++i]);
+					if (prefetchDepth < 1)
+						throw new IllegalArgumentException("The prefetch queue depth must be positive");
+				}
+				else if (args[i].equals("--format")) {
+					if (i+1 == args.length)
+						throw new IllegalArgumentException("--format requires text, tsv or binary");
+					format = ResultWriter.parseFormat(args[++i]);
+				}
+				else if (args[i].equals("--key-cache")) {
+					if (i+1 == args.length)
+						throw new IllegalArgumentException("--key-cache requires a size");
+					keyCacheSize = Integer.parseInt(args[++i]);
+					if (keyCacheSize < 1)
+						throw new IllegalArgumentException("The key cache size must be positive");
+				}
+				else if (args[i].equals("--misses"))
+					writeMisses = true;
+				else if (args[i].equals("--auto"))
+					autoTune = true;
+				else if (args[i].equals("--stats"))
+					printStats = true;
+				else if (args[i].equals("--coverage"))
+					coverage = true;
+				else if (args[i].equals("--trace")) {
+					if (i+1 == args.length)
+						throw new IllegalArgumentException("--trace requires a trace file");
+					traceFileName = args[++i];
+				}
+				else
+					positional.add(args[i]);
+			}
+			args = positional.toArray(new String[0]);
+			if (printStats) {
+				if (args.length != 1)
+					throw new IllegalArgumentException("--stats takes only a BTree or sketch file");
+				if (!new File(args[0]).exists())
+					throw new FileNotFoundException(args[0]);
+				KmerIndex index = KmerIndex.open(args[0], 0);
+				if (index instanceof CountMinSketch)
+					printStats((CountMinSketch) index);
+				else if (index instanceof BTree)
+					printStats((BTree) index);
+				else {
+					index.close();
+					throw new IllegalArgumentException("--stats takes only a BTree or sketch file");
+				}
+				index.close();
+				return;
+			}
+			if (keyCacheSize > 0 && prefetchDepth > 0)
+				throw new IllegalArgumentException("--key-cache cannot be used with --prefetch");
+
 			//initialize variables and check for input argument errors
 			cacheStatus = Integer.parseInt(args[0]);
 			if (cacheStatus!=0 && cacheStatus!=1) {	//verify value of cacheStatus
 				throw new IllegalArgumentException("Cache status must be 0 (without cache) or 1 (with cache)");
 			}	
 			btreeFileName = args[1];
-			BTree btree = null;
+			KmerIndex index = null;	//a BTree, or a dense index for small sequence lengths
 			query = new File(args[2]);
 			cacheSize = (cacheStatus==1)?Integer.parseInt(args[3]):0;
 			if(cacheStatus==1) 
@@ -33,26 +108,55 @@ public class GeneBankSearch {
 				if (args.length==6) {
 					debugLevel = Integer.parseInt(args[5]);	
 				}
-				btree = new BTree(btreeFileName, cacheSize);
+				index = KmerIndex.open(btreeFileName, cacheSize);
 			}
 			else if(cacheStatus==0)
 			{
-				btree = new BTree(btreeFileName);
+				index = KmerIndex.open(btreeFileName, 0);
 				if (args.length==5) {
 					debugLevel = Integer.parseInt(args[4]);
 				}
 			}
 			
-			//begin scanning file
-			Scanner scan = new Scanner(query);
-			while(scan.hasNext()) {
-				String sequence = scan.next();
-				int freq = btree.BTreeSearch(btree.getRoot(),sequence);
-				if(freq != 0) {
-					System.out.println(sequence.toLowerCase()+": "+freq);	
-				}
+			//replace the given cache size with the one that did best on a sample of the queries
+			if (autoTune && index instanceof BTree) {
+				index.close();
+				cacheSize = AutoTuner.tuneSearch(btreeFileName, query);
+				index = KmerIndex.open(btreeFileName, cacheSize);
+			}
+
+			if (index instanceof CountMinSketch) {
+				CountMinSketch sketch = (CountMinSketch) index;
+				System.err.println(String.format("Estimated frequencies: never too low, and at most %d too high with probability %.4f",
+						sketch.getErrorBound(), sketch.getConfidence()));
+			}
+			if (traceFileName != null && index instanceof BTree)
+				((BTree) index).startTrace(traceFileName);
+			int minCount = (index instanceof BTree) ? ((BTree) index).getMinCount() : 0;
+			if (minCount > 0)
+				System.err.println("Sequences that occur fewer than "+minCount+" times were left out of this BTree; misses are below that threshold");
+			KeyCache keyCache = null;
+			if (keyCacheSize > 0)
+				index = keyCache = new KeyCache(index, keyCacheSize);
+
+			ResultWriter out = new ResultWriter(format, writeMisses);
+			out.setBelowThreshold(minCount > 0);
+			if (isGenome(query))
+				searchGenome(index, query, prefetchDepth, out, coverage, minCount);
+			else if (coverage)
+				throw new IllegalArgumentException("--coverage requires a gbk query file");
+			else if (prefetchDepth > 0)
+				batchSearch(index, query, prefetchDepth, out);
+			else
+				search(index, query, out);
+			out.flush();
+			index.close();
+			if (keyCache != null) {
+				long lookups = keyCache.getHits()+keyCache.getMisses();
+				System.err.println(String.format("Key cache: %d hits, %d misses (%.1f%% hit rate), %d results not admitted",
+						keyCache.getHits(), keyCache.getMisses(), (lookups > 0) ? 100.0*keyCache.getHits()/lookups : 0.0,
+						keyCache.getRejected()));
 			}
-			scan.close();
 			
 		} catch (FileNotFoundException e) {
 			System.out.println("Error: Please make sure that the filename is valid.");
@@ -68,12 +172,203 @@ public class GeneBankSearch {
 
 	}
 	
+	/**
+	 * Search for each query in the query file, one at a time.
+	 * @return The number of queries
+	 */
+	static long search(KmerIndex index, File query, ResultWriter out) throws IOException {
+		long queries = 0;
+		Scanner scan = new Scanner(query);
+		while(scan.hasNext()) {
+			String sequence = scan.next();
+			long key = new TreeObject(sequence, index.getK()).getKey();
+			out.write(sequence, key, index.search(key));
+			queries++;
+		}
+		scan.close();
+		return queries;
+	}
+
+	/**
+	 * Return whether a query file is a gbk file (possibly compressed) rather than a list
+	 * of sequences.
+	 */
+	private static boolean isGenome(File query) {
+		String name = query.getName();
+		return name.endsWith(".gbk") || name.endsWith(".gbk.gz");
+	}
+
+	/**
+	 * Search for every sequence of a gbk file, streaming them out of the file the way
+	 * GeneBankCreateBTree reads them. The sequences are collected in batches, and each
+	 * batch is sorted so that every distinct sequence is looked up once, in key order
+	 * (neighboring lookups share most of their path through a BTree, so the node cache
+	 * and read-ahead help). Results are written in the order the sequences occur in the
+	 * file, or only counted if coverage is true.
+	 * @param prefetchDepth The number of node reads to keep in flight for a BTree (0 to
+	 * search one sequence at a time)
+	 * @param coverage Whether to print how much of the genome is in the index instead of
+	 * the result of every sequence
+	 * @param minCount The smallest frequency kept in the index (0 if every sequence was kept)
+	 * @return The number of sequences searched for
+	 */
+	static long searchGenome(KmerIndex index, File gbkFile, int prefetchDepth, ResultWriter out, boolean coverage,
+			int minCount) throws IOException {
+		int k = index.getK();
+		long[] batch = new long[GENOME_BATCH_SIZE], sorted = new long[GENOME_BATCH_SIZE];
+		int[] frequencies = new int[GENOME_BATCH_SIZE];
+		StringBuilder sequence = new StringBuilder(k);
+		long queries = 0, found = 0, lookups = 0, foundFrequencies = 0;
+
+		try (GeneBankInputStream in = new GeneBankInputStream(gbkFile)) {
+			KmerParser kmers = new KmerParser(in, k);
+			int n;
+			do {
+				n = 0;
+				long key;
+				while (n < batch.length && (key = kmers.next()) != -1)
+					batch[n++] = key;
+
+				//look up each distinct sequence of the batch once, in key order
+				System.arraycopy(batch, 0, sorted, 0, n);
+				Arrays.sort(sorted, 0, n);
+				int distinct = 0;
+				for (int i=0; i<n; i++) {
+					if (distinct == 0 || sorted[i] != sorted[distinct-1])
+						sorted[distinct++] = sorted[i];
+				}
+				if (prefetchDepth > 0 && index instanceof BTree)
+					System.arraycopy(((BTree) index).BTreeBatchSearch(Arrays.copyOf(sorted, distinct), prefetchDepth), 0, frequencies, 0, distinct);
+				else {
+					for (int i=0; i<distinct; i++)
+						frequencies[i] = index.search(sorted[i]);
+				}
+				lookups += distinct;
+
+				for (int i=0; i<n; i++) {
+					int frequency = frequencies[Arrays.binarySearch(sorted, 0, distinct, batch[i])];
+					if (frequency > 0) {
+						found++;
+						foundFrequencies += frequency;
+					}
+					if (!coverage) {
+						sequence.setLength(0);
+						for (int shift=2*(k-1); shift>=0; shift-=2)
+							sequence.append("acgt".charAt((int) (batch[i]>>>shift) & 3));
+						out.write(sequence, batch[i], frequency);
+					}
+				}
+				queries += n;
+			} while (n == batch.length);
+		}
+
+		if (coverage) {
+			System.out.println("Query sequences: "+queries);
+			System.out.println(String.format("Found: %d (%.2f%%)", found, (queries > 0) ? 100.0*found/queries : 0.0));
+			if (minCount > 0)
+				System.out.println("Below threshold (fewer than "+minCount+" in the index's genome): "+(queries-found));
+			else
+				System.out.println("Not found: "+(queries-found));
+			System.out.println(String.format("Mean frequency of found sequences: %.2f", (found > 0) ? (double) foundFrequencies/found : 0.0));
+			System.out.println("Lookups (distinct sequences per batch): "+lookups);
+		}
+		return queries;
+	}
+
+	/**
+	 * Read the whole query file, then search for all of the queries at once so that
+	 * the node reads they need can overlap.
+	 */
+	private static void batchSearch(KmerIndex index, File query, int prefetchDepth, ResultWriter out) throws IOException {
+		ArrayList<String> sequences = new ArrayList<String>();
+		Scanner scan = new Scanner(query);
+		while(scan.hasNext())
+			sequences.add(scan.next());
+		scan.close();
+
+		long[] keys = new long[sequences.size()];
+		for (int i=0; i<keys.length; i++)
+			keys[i] = new TreeObject(sequences.get(i), index.getK()).getKey();
+
+		int[] frequencies;
+		if (index instanceof BTree) {
+			frequencies = ((BTree) index).BTreeBatchSearch(keys, prefetchDepth);
+		}
+		else {
+			//other indexes answer each query with a single read, so there is nothing to overlap
+			frequencies = new int[keys.length];
+			for (int i=0; i<keys.length; i++)
+				frequencies[i] = index.search(keys[i]);
+		}
+		for (int i=0; i<frequencies.length; i++)
+			out.write(sequences.get(i), keys[i], frequencies[i]);
+	}
+
+	/**
+	 * Print the statistics of a BTree. They are read from the header; files written
+	 * before the header had statistics are scanned instead.
+	 */
+	private static void printStats(BTree btree) throws IOException {
+		BTree.Stats stats = btree.getStats();
+		if (stats == null) {
+			System.out.println("(no statistics in the header; computed by reading every node)");
+			stats = btree.computeStats();
+		}
+		int k = btree.getK();
+		System.out.println("Sequence length: "+k);
+		System.out.println("Degree: "+btree.getDegree());
+		System.out.println("Distinct sequences: "+stats.distinct);
+		System.out.println("Total sequences: "+stats.total);
+		System.out.println("Height: "+stats.height);
+		System.out.println("Nodes: "+stats.nodes);
+		if (btree.getMinCount() > 0)
+			System.out.println("Minimum count: "+btree.getMinCount()+" (sequences that occur less often were left out)");
+		if (stats.distinct > 0) {
+			System.out.println("Smallest sequence: "+new TreeObject(stats.minKey, k).getSequence());
+			System.out.println("Largest sequence: "+new TreeObject(stats.maxKey, k).getSequence());
+		}
+		System.out.println("Frequency histogram:");
+		for (int b=0; b<BTree.Stats.HISTOGRAM_BUCKETS; b++) {
+			if (stats.histogram[b] == 0)
+				continue;
+			long low = 1L<<b, high = (1L<<(b+1))-1;
+			System.out.println(String.format("%12s: %d", (low == high) ? ""+low : low+"-"+high, stats.histogram[b]));
+		}
+	}
+
+	/**
+	 * Print the totals of a sketch and the heavy hitters saved with it.
+	 */
+	private static void printStats(CountMinSketch sketch) {
+		System.out.println("Sequence length: "+sketch.getK());
+		System.out.println("Total sequences: "+sketch.getTotal());
+		System.out.println(String.format("Error bound: %d (with probability %.4f)", sketch.getErrorBound(), sketch.getConfidence()));
+		System.out.println("Heavy hitters: "+sketch.getHeavyHitterCount());
+		sketch.printHeavyHitters(System.out);
+	}
+
 	/**
 	 * Helper method which will print the usage statement to the
 	 * console. 
 	 */
 	private static void printUsage() {
-		System.out.println("Usage: java GeneBankSearch <0/1(no/with Cache)> <btree file> <query file> [<cache size>] [<debug level>]"
-				+ "\nNote: If using with Cache, cache size must be specified.");
+		System.out.println("Usage: java GeneBankSearch --stats <btree file or sketch file>"
+				+ "\n       java GeneBankSearch [--prefetch <queue depth>] [--key-cache <size>] [--format text|tsv|binary] [--misses] [--auto] [--trace <trace file>] <0/1(no/with Cache)> <btree file> <query file> [<cache size>] [<debug level>]"
+				+ "\n       java GeneBankSearch [options] [--coverage] <0/1(no/with Cache)> <btree file> <gbk file> [<cache size>] [<debug level>]"
+				+ "\nNote: If using with Cache, cache size must be specified."
+				+ "\n      A gbk file (.gbk or .gbk.gz) in place of the query file searches for every sequence in it, in"
+				+ "\n      sorted batches; --coverage prints how many of them are in the index instead of each result."
+				+ "\n      --prefetch searches all queries together, keeping up to <queue depth> node reads in flight."
+				+ "\n      --key-cache keeps up to <size> results in memory, favoring sequences that are queried often, so"
+				+ "\n      repeated queries do not search the file again."
+				+ "\n      --format text prints \"<sequence>: <frequency>\" (default), tsv prints \"<sequence>\\t<frequency>\","
+				+ "\n      binary writes an 8-byte key and a 4-byte frequency per result."
+				+ "\n      --misses also writes sequences that were not found, with frequency 0 (or \"below threshold\" for a"
+				+ "\n      BTree built with --min-count)."
+				+ "\n      --auto tries several cache sizes on the start of the query file and searches with the fastest one."
+				+ "\n      --trace logs every node read of the search to <trace file> for GeneBankTraceReplay."
+				+ "\n      --stats prints the number of sequences, height, node count, smallest and largest sequence and"
+				+ "\n      a histogram of frequencies, kept in the BTree file's header. For a sketch file it prints the total,"
+				+ "\n      the error bound and the saved heavy hitters, most frequent first.");
 	}
 }
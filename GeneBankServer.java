@@ -0,0 +1,259 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+/**
+ * Keeps one or more BTree files open and answers queries over a local socket,
+ * so that many small query batches do not each pay for starting the JVM,
+ * reopening the tree and warming up the cache.
+ *
+ * The protocol is line based. Each request is one line:
+ *   GET <sequence>            replies "<sequence>: <frequency>"
+ *   BATCH <n>                 followed by n lines with one sequence each; replies
+ *                             one "<sequence>: <frequency>" line per sequence, then "END"
+ *   PREFIX <prefix> [<k>]     replies "<sequence>: <frequency>" for every sequence in the
+ *                             tree of length k that starts with prefix, then "END"
+ *   TREES                     replies "<k> <degree> <btree file>" per open tree, then "END"
+ *   QUIT                      closes the connection
+ * Errors are reported as a single "ERROR <message>" line (one per bad sequence in a batch). The tree used for a query
+ * is the one whose sequence length matches the length of the query.
+ */
+public class GeneBankServer {
+
+	public static final int DEFAULT_PORT = 3210;
+
+	private ArrayList<BTree> trees;			//the open trees, at most one per sequence length
+	private ArrayList<String> treeNames;	//the file name of each open tree
+	private ServerSocketChannel server;
+
+	/**
+	 * Open the given BTree files. Every tree gets its own cache, which is shared by
+	 * all of the clients.
+	 * @param btreeFileNames The BTree files to serve
+	 * @param cacheSize The size of each tree's cache (0 for no cache)
+	 * @throws IOException If a BTree file could not be opened
+	 */
+	public GeneBankServer(String[] btreeFileNames, int cacheSize) throws IOException {
+		trees = new ArrayList<BTree>();
+		treeNames = new ArrayList<String>();
+		for (String name : btreeFileNames) {
+			if (!new File(name).exists())
+				throw new IOException("BTree file "+name+" does not exist");
+			BTree btree = (cacheSize > 0) ? new BTree(name, cacheSize) : new BTree(name);
+			if (findTree(btree.getK()) != null)
+				throw new IllegalArgumentException("Only one BTree per sequence length can be served");
+			trees.add(btree);
+			treeNames.add(name);
+		}
+	}
+
+	/**
+	 * Start listening on a Unix-domain socket.
+	 * @param path The path of the socket file
+	 */
+	public void bindUnix(String path) throws IOException {
+		File socketFile = new File(path);
+		if (socketFile.exists())
+			socketFile.delete();
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(path));
+	}
+
+	/**
+	 * Start listening on the loopback interface.
+	 * @param port The port to listen on (0 picks a free port)
+	 * @return The port that is actually used
+	 */
+	public int bindLoopback(int port) throws IOException {
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		return ((InetSocketAddress) server.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Accept connections until the server is closed. Each connection is handled on
+	 * its own thread.
+	 */
+	public void serve() {
+		try {
+			while (true) {
+				SocketChannel client = server.accept();
+				Thread handler = new Thread(() -> handle(client), "GeneBankServer-client");
+				handler.setDaemon(true);
+				handler.start();
+			}
+		} catch (IOException e) {
+			//the server socket was closed
+		}
+	}
+
+	/**
+	 * Stop accepting new connections.
+	 */
+	public void close() throws IOException {
+		server.close();
+	}
+
+	/**
+	 * Read requests from a client until it disconnects or sends QUIT.
+	 */
+	private void handle(SocketChannel client) {
+		try (SocketChannel channel = client) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), "US-ASCII"));
+			Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), "US-ASCII"));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] request = line.trim().split("\\s+");
+				String command = request[0].toUpperCase();
+				if (command.equals("QUIT"))
+					break;
+				try {
+					if (command.equals("GET") && request.length == 2) {
+						out.write(lookup(request[1]));
+					}
+					else if (command.equals("BATCH") && request.length == 2) {
+						int n = Integer.parseInt(request[1]);
+						for (int i=0; i<n; i++) {
+							String sequence = in.readLine();
+							if (sequence == null)
+								return;
+							try {
+								out.write(lookup(sequence.trim()));
+							} catch (IllegalArgumentException e) {
+								out.write("ERROR "+e.getMessage()+"\n");	//keep the reply aligned with the batch
+							}
+						}
+						out.write("END\n");
+					}
+					else if (command.equals("PREFIX") && (request.length == 2 || request.length == 3)) {
+						BTree btree = (request.length == 3) ? findTree(Integer.parseInt(request[2])) : onlyTree();
+						if (btree == null)
+							throw new IllegalArgumentException("No BTree is open for that sequence length");
+						ArrayList<TreeObject> results;
+						synchronized (btree) {
+							results = btree.prefixSearch(request[1].toLowerCase());
+						}
+						for (TreeObject object : results)
+							out.write(object.getSequence()+": "+object.getFrequency()+"\n");
+						out.write("END\n");
+					}
+					else if (command.equals("TREES") && request.length == 1) {
+						for (int i=0; i<trees.size(); i++)
+							out.write(trees.get(i).getK()+" "+trees.get(i).getDegree()+" "+treeNames.get(i)+"\n");
+						out.write("END\n");
+					}
+					else {
+						out.write("ERROR Unknown request: "+line+"\n");
+					}
+				} catch (IllegalArgumentException e) {
+					out.write("ERROR "+e.getMessage()+"\n");
+				}
+				//only flush once the client has nothing else queued up
+				if (!in.ready())
+					out.flush();
+			}
+			out.flush();
+		} catch (IOException e) {
+			System.out.println("Error: lost connection to client.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Look up a single sequence and format the reply line.
+	 */
+	private String lookup(String sequence) throws IOException {
+		BTree btree = findTree(sequence.length());
+		if (btree == null)
+			throw new IllegalArgumentException("No BTree is open for sequences of length "+sequence.length());
+		int freq;
+		synchronized (btree) {	//the file and the cache are shared by all clients
+			freq = btree.BTreeSearch(btree.getRoot(), sequence);
+		}
+		return sequence.toLowerCase()+": "+freq+"\n";
+	}
+
+	/**
+	 * Return the open tree with sequence length k (null if there is none).
+	 */
+	private BTree findTree(int k) {
+		for (BTree btree : trees) {
+			if (btree.getK() == k)
+				return btree;
+		}
+		return null;
+	}
+
+	/**
+	 * Return the open tree if only one tree is being served (null otherwise).
+	 */
+	private BTree onlyTree() {
+		return (trees.size() == 1) ? trees.get(0) : null;
+	}
+
+	/**
+	 * Run the server.
+	 */
+	public static void main(String[] args) {
+		String socketPath = null;
+		int port = DEFAULT_PORT, cacheSize = 0;
+		ArrayList<String> files = new ArrayList<String>();
+
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--unix"))
+					socketPath = args[++i];
+				else if (args[i].equals("--port"))
+					port = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--cache")) {
+					cacheSize = Integer.parseInt(args[++i]);
+					if (cacheSize < 1)
+						throw new IllegalArgumentException("When using cache, a positive cache size must be specified");
+				}
+				else
+					files.add(args[i]);
+			}
+			if (files.isEmpty())
+				throw new IllegalArgumentException("At least one BTree file must be specified");
+
+			GeneBankServer server = new GeneBankServer(files.toArray(new String[0]), cacheSize);
+			if (socketPath != null) {
+				server.bindUnix(socketPath);
+				System.out.println("Listening on "+socketPath);
+			}
+			else {
+				port = server.bindLoopback(port);
+				System.out.println("Listening on port "+port);
+			}
+			server.serve();
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			e.printStackTrace();
+			printUsage();
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error: Could not start the server.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method which will print the usage statement to the
+	 * console.
+	 */
+	private static void printUsage() {
+		System.out.println("Usage: java GeneBankServer [--unix <socket file> | --port <port>] [--cache <cache size>] <btree file> [<btree file> ...]"
+				+ "\nNote: The server listens on port "+DEFAULT_PORT+" of the loopback interface by default.");
+	}
+}
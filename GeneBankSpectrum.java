@@ -0,0 +1,77 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Writes the k-mer spectrum of a BTree file: for every frequency, the number of distinct
+ * sequences that occur that many times, as tab separated values ready for plotting.
+ */
+public class GeneBankSpectrum {
+
+	/**
+	 * Run the program.
+	 */
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		String btreeFileName = null, outputFileName = null;
+
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--threads")) {
+					threads = Integer.parseInt(args[++i]);
+					if (threads < 1)
+						throw new IllegalArgumentException("The number of threads must be positive");
+				}
+				else if (btreeFileName == null)
+					btreeFileName = args[i];
+				else if (outputFileName == null)
+					outputFileName = args[i];
+				else
+					throw new IllegalArgumentException("Unexpected argument "+args[i]);
+			}
+			if (btreeFileName == null)
+				throw new IllegalArgumentException("A BTree file must be specified");
+			if (!new File(btreeFileName).exists())
+				throw new FileNotFoundException(btreeFileName);
+
+			BTree btree = new BTree(btreeFileName);
+			long[] spectrum = btree.frequencySpectrum(threads);
+			btree.close();
+
+			PrintStream out = (outputFileName != null) ? new PrintStream(new FileOutputStream(outputFileName), false) : System.out;
+			StringBuilder lines = new StringBuilder("frequency\tsequences\n");
+			for (int frequency=1; frequency<spectrum.length; frequency++) {
+				if (spectrum[frequency] != 0)
+					lines.append(frequency).append('\t').append(spectrum[frequency]).append('\n');
+			}
+			out.print(lines);
+			out.flush();
+			if (out != System.out)
+				out.close();
+		}
+		catch (FileNotFoundException e) {
+			System.out.println("Error: Please make sure that the filename is valid.");
+			e.printStackTrace();
+		}
+		catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			e.printStackTrace();
+			printUsage();
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error: Could not read the BTree file.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method which will print the usage statement to the
+	 * console.
+	 */
+	private static void printUsage() {
+		System.out.println("Usage: java GeneBankSpectrum [--threads <n>] <btree file> [<output file>]"
+				+ "\nNote: Writes \"frequency<tab>sequences\" for every frequency that occurs, to <output file>"
+				+ "\n      or the console. --threads defaults to the number of processors.");
+	}
+}
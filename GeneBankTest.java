@@ -0,0 +1,644 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Checks the programs against a brute-force count of the sequences of a small gbk file.
+ * Every failed check is printed, and the program exits with status 1 if there was one.
+ *
+ * Usage: java GeneBankTest (run from the directory that holds data/)
+ */
+public class GeneBankTest {
+
+	private static int checks, failures;
+	private static File directory;	//temporary files of the checks
+
+	/**
+	 * Run the program.
+	 */
+	public static void main(String[] args) {
+		File gbk = new File("data/test1.gbk"), other = new File("data/test2.gbk");
+		try {
+			directory = Files.createTempDirectory("genebank-test").toFile();
+			try {
+				checkMerge(gbk, other, 9);
+				checkCompact(gbk, 7);
+				checkDense(gbk, 6);
+				checkSortedArray(gbk, 7);
+				checkSortedArray(other, 11);
+				checkResume(gbk, 8, false);
+				checkResume(gbk, 8, true);
+				checkSketch(gbk, 8);
+				checkBPlusTree(other, 11);
+				checkSpectrum(other, 5);
+				checkMinCount(gbk, 9);
+				checkServer(gbk, 6);
+			} finally {
+				for (File file : directory.listFiles())
+					file.delete();
+				directory.delete();
+			}
+		} catch (IOException e) {
+			System.out.println("Error: "+e.getMessage());
+			e.printStackTrace();
+			failures++;
+		}
+		System.out.println(checks+" checks, "+failures+" failed");
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * Record the result of a check, printing it if it failed.
+	 */
+	private static void check(boolean passed, String description) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAILED: "+description);
+		}
+	}
+
+	/**
+	 * Find the sequences of length k of a gbk file the slow way: collect the bases between
+	 * each ORIGIN line and the following // line, split them at every 'n' and take every
+	 * window of k bases.
+	 * @return The key of every sequence, in the order they occur in the file
+	 */
+	static long[] bruteForceKeys(File gbk, int k) throws IOException {
+		ArrayList<Long> keys = new ArrayList<Long>();
+		StringBuilder bases = new StringBuilder();
+		boolean inSequence = false;
+		try (BufferedReader in = new BufferedReader(new FileReader(gbk))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!inSequence && line.startsWith("ORIGIN")) {
+					inSequence = true;
+					bases.setLength(0);
+				}
+				else if (inSequence && line.startsWith("//")) {
+					inSequence = false;
+					for (String part : bases.toString().split("n")) {
+						for (int i=0; i+k<=part.length(); i++)
+							keys.add(encode(part.substring(i, i+k)));
+					}
+				}
+				else if (inSequence) {
+					for (char c : line.toLowerCase().toCharArray()) {
+						if ("acgtn".indexOf(c) >= 0)
+							bases.append(c);
+					}
+				}
+			}
+		}
+		long[] result = new long[keys.size()];
+		for (int i=0; i<result.length; i++)
+			result[i] = keys.get(i);
+		return result;
+	}
+
+	/**
+	 * Count the first n keys.
+	 * @return The frequency of every sequence among them, by key
+	 */
+	static TreeMap<Long,Integer> count(long[] keys, int n) {
+		TreeMap<Long,Integer> counts = new TreeMap<Long,Integer>();
+		for (int i=0; i<n; i++)
+			counts.merge(keys[i], 1, Integer::sum);
+		return counts;
+	}
+
+	/**
+	 * Count the sequences of length k of a gbk file the slow way (see bruteForceKeys()).
+	 * @return The frequency of every sequence that occurs, by key
+	 */
+	static TreeMap<Long,Integer> bruteForce(File gbk, int k) throws IOException {
+		long[] keys = bruteForceKeys(gbk, k);
+		return count(keys, keys.length);
+	}
+
+	/**
+	 * Return the key of a sequence (a = 00, c = 01, g = 10, t = 11, first base highest).
+	 */
+	static long encode(String sequence) {
+		long key = 0;
+		for (int i=0; i<sequence.length(); i++)
+			key = (key<<2) | "acgt".indexOf(sequence.charAt(i));
+		return key;
+	}
+
+	/**
+	 * Return the sequence of a key.
+	 */
+	static String decode(long key, int k) {
+		char[] sequence = new char[k];
+		for (int i=k-1; i>=0; i--, key>>>=2)
+			sequence[i] = "acgt".charAt((int) (key&3));
+		return new String(sequence);
+	}
+
+	/**
+	 * Build a BTree of a gbk file the way GeneBankCreateBTree does.
+	 */
+	private static BTree buildTree(File gbk, int k, int degree) throws IOException {
+		BTree btree = new BTree(degree, k, new File(directory, gbk.getName()).getPath());
+		GeneBankCreateBTree.insertSequences(btree::BTreeInsert, gbk, k, false, null);
+		btree.finalize();
+		return btree;
+	}
+
+	/**
+	 * Check that a BTree holds exactly the expected sequences and frequencies, in order,
+	 * that searches (with and without a cache) find them, and that the statistics in its
+	 * header agree.
+	 */
+	private static void checkContents(String btreeFileName, TreeMap<Long,Integer> expected, String description)
+			throws IOException {
+		BTree btree = new BTree(btreeFileName);
+		try {
+			BTree.TreeIterator iterator = btree.iterator();
+			TreeObject object;
+			boolean same = true;
+			for (Map.Entry<Long,Integer> entry : expected.entrySet()) {
+				object = iterator.next();
+				same &= object != null && object.getKey() == entry.getKey() && object.getFrequency() == entry.getValue();
+			}
+			check(same && iterator.next() == null, description+": contents");
+			checkStructure(btree, description);
+
+			BTree.Stats stats = btree.getStats();
+			long total = 0;
+			for (int frequency : expected.values())
+				total += frequency;
+			check(stats != null && stats.distinct == expected.size() && stats.total == total
+					&& stats.minKey == (expected.isEmpty() ? -1 : expected.firstKey())
+					&& stats.maxKey == (expected.isEmpty() ? -1 : expected.lastKey()), description+": statistics");
+		} finally {
+			btree.close();
+		}
+		checkSearches(KmerIndex.open(btreeFileName, 0), expected, description+": searches");
+		checkSearches(KmerIndex.open(btreeFileName, 10), expected, description+": searches with a cache");
+	}
+
+	/**
+	 * Check that an index finds every expected sequence with its frequency, and nothing
+	 * else (every possible key is searched if there are few enough), then close it.
+	 */
+	private static void checkSearches(KmerIndex index, TreeMap<Long,Integer> expected, String description)
+			throws IOException {
+		try {
+			boolean same = true;
+			if (index.getK() <= 8) {
+				for (long key=0; key<(1L<<(2*index.getK())); key++)
+					same &= index.search(key) == expected.getOrDefault(key, 0);
+			}
+			else {
+				for (Map.Entry<Long,Integer> entry : expected.entrySet()) {
+					same &= index.search(entry.getKey()) == entry.getValue();
+					same &= entry.getKey() == 0 || expected.containsKey(entry.getKey()-1)
+							|| index.search(entry.getKey()-1) == 0;
+				}
+			}
+			check(same, description);
+		} finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * Check the BTree invariants: every node but the root holds between t-1 and 2t-1 keys,
+	 * the keys are in increasing order across the whole tree, and every leaf is at the
+	 * same depth.
+	 */
+	private static void checkStructure(BTree btree, String description) throws IOException {
+		int t = btree.getDegree();
+		int[] leafDepth = {-1};
+		long[] lastKey = {-1};
+		check(checkNode(btree, btree.getRoot(), true, 0, t, leafDepth, lastKey), description+": structure");
+	}
+
+	/**
+	 * Helper method for checkStructure. Check a node and everything below it.
+	 */
+	private static boolean checkNode(BTree btree, BTree.BTreeNode node, boolean isRoot, int depth, int t,
+			int[] leafDepth, long[] lastKey) throws IOException {
+		int n = node.getNumKeys();
+		if (n > 2*t-1 || (!isRoot && n < t-1))
+			return false;
+		if (node.isLeaf()) {
+			if (leafDepth[0] == -1)
+				leafDepth[0] = depth;
+			if (leafDepth[0] != depth)
+				return false;
+		}
+		for (int i=0; i<=n; i++) {
+			if (!node.isLeaf() && !checkNode(btree, btree.readNode(node.getChild(i)), false, depth+1, t, leafDepth, lastKey))
+				return false;
+			if (i < n) {
+				long key = node.getTreeObject(i).getKey();
+				if (key <= lastKey[0])
+					return false;
+				lastKey[0] = key;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Merge the BTrees of two gbk files (and a tree with itself) and check that the
+	 * frequencies of the merged tree are the sums of the brute-force counts.
+	 */
+	private static void checkMerge(File first, File second, int k) throws IOException {
+		TreeMap<Long,Integer> expected = bruteForce(first, k);
+		for (Map.Entry<Long,Integer> entry : bruteForce(second, k).entrySet())
+			expected.merge(entry.getKey(), entry.getValue(), Integer::sum);
+
+		ArrayList<String> names = new ArrayList<String>();
+		BTree btree = buildTree(first, k, 3);
+		names.add(btree.getFileName());
+		btree.close();
+		btree = buildTree(second, k, 5);
+		names.add(btree.getFileName());
+		btree.close();
+		checkContents(names.get(0), bruteForce(first, k), "BTree of "+first.getName());
+
+		for (int degree : new int[] {2, 0}) {
+			BTree merged = GeneBankMergeBTree.merge(names, degree, new File(directory, "merged").getPath());
+			String fileName = merged.getFileName();
+			merged.close();
+			checkContents(fileName, expected, "merge with degree "+degree);
+		}
+
+		names.set(1, names.get(0));
+		BTree merged = GeneBankMergeBTree.merge(names, 4, new File(directory, "doubled").getPath());
+		String fileName = merged.getFileName();
+		merged.close();
+		TreeMap<Long,Integer> doubled = bruteForce(first, k);
+		doubled.replaceAll((key, frequency) -> 2*frequency);
+		checkContents(fileName, doubled, "merge of a BTree with itself");
+	}
+
+	/**
+	 * Compact a BTree in both layouts and check that the copies hold the same sequences,
+	 * are no larger, and that compacting a compacted BTree again changes nothing.
+	 */
+	private static void checkCompact(File gbk, int k) throws IOException {
+		TreeMap<Long,Integer> expected = bruteForce(gbk, k);
+		BTree btree = buildTree(gbk, k, 2);
+		String original = btree.getFileName();
+		for (boolean vanEmdeBoas : new boolean[] {false, true}) {
+			String layout = vanEmdeBoas ? "van Emde Boas" : "breadth-first";
+			String once = new File(directory, "once").getPath(), twice = new File(directory, "twice").getPath();
+			btree.compact(once, vanEmdeBoas);
+			checkContents(once, expected, layout+" compaction");
+			check(new File(once).length() <= new File(original).length(), layout+" compaction: file size");
+
+			BTree compacted = new BTree(once);
+			compacted.compact(twice, vanEmdeBoas);
+			compacted.close();
+			check(Arrays.equals(Files.readAllBytes(new File(once).toPath()), Files.readAllBytes(new File(twice).toPath())),
+					layout+" compaction: compacting again changes nothing");
+		}
+		btree.close();
+	}
+
+	/**
+	 * Count a gbk file in a dense index and check its header, its size and every
+	 * frequency against the brute-force count. Also check that GeneBankCreateBTree builds
+	 * a dense index for a small k, but a BTree once an option only a BTree has is given.
+	 */
+	private static void checkDense(File gbk, int k) throws IOException {
+		TreeMap<Long,Integer> expected = bruteForce(gbk, k);
+		long total = 0;
+		for (int frequency : expected.values())
+			total += frequency;
+		DenseIndex dense = new DenseIndex(k, new File(directory, gbk.getName()).getPath());
+		GeneBankCreateBTree.insertSequences(dense::insert, gbk, k, false, null);
+		dense.save();
+		String fileName = dense.getFileName();
+		dense.close();
+
+		try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+			check(in.readInt() == DenseIndex.MAGIC && in.readByte() == k && in.skipBytes(3) == 3 && in.readLong() == total,
+					"dense index: header");
+		}
+		check(new File(fileName).length() == 16+4*(1L<<(2*k)), "dense index: file size");
+		checkSearches(KmerIndex.open(fileName, 0), expected, "dense index: searches");
+
+		File copy = new File(directory, "dense.gbk");
+		Files.copy(gbk.toPath(), copy.toPath());
+		GeneBankCreateBTree.main(new String[] {"0", "0", copy.getPath(), ""+k});
+		check(new File(copy.getPath()+".dense.data."+k).exists(), "GeneBankCreateBTree builds a dense index for k="+k);
+		GeneBankCreateBTree.main(new String[] {"0", "4", copy.getPath(), ""+k});
+		String btreeFileName = copy.getPath()+".btree.data."+k+".4";
+		check(new File(btreeFileName).exists(), "GeneBankCreateBTree builds a BTree for k="+k+" given a degree");
+		checkContents(btreeFileName, expected, "BTree for k="+k);
+	}
+
+	/**
+	 * Export a BTree to a sorted array index and check its header, its size and every
+	 * frequency against the brute-force count.
+	 */
+	private static void checkSortedArray(File gbk, int k) throws IOException {
+		TreeMap<Long,Integer> expected = bruteForce(gbk, k);
+		BTree btree = buildTree(gbk, k, 0);
+		String fileName = new File(directory, "sorted").getPath();
+		SortedArrayIndex.export(btree, fileName);
+		btree.close();
+
+		int sampleInterval;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+			check(in.readInt() == SortedArrayIndex.MAGIC && in.readByte() == k && in.skipBytes(3) == 3
+					&& in.readLong() == expected.size(), "sorted array: header");
+			sampleInterval = in.readInt();
+		}
+		long samples = (expected.size()+sampleInterval-1)/sampleInterval;
+		check(sampleInterval > 0 && new File(fileName).length() == 32+12L*expected.size()+8*samples, "sorted array: file size");
+		checkSearches(KmerIndex.open(fileName, 0), expected, "sorted array: searches");
+	}
+
+	/**
+	 * Build a BTree with checkpoints, stop the build in the middle as if it had been
+	 * killed, resume it with GeneBankCreateBTree --resume and check that the finished
+	 * BTree matches the brute-force count. With copy-on-write, the stopped build is also
+	 * opened as a reader would, which must see exactly the sequences up to the last
+	 * checkpoint.
+	 */
+	private static void checkResume(File gbk, int k, boolean copyOnWrite) throws IOException {
+		String description = copyOnWrite ? "copy-on-write build" : "checkpointed build";
+		long[] keys = bruteForceKeys(gbk, k);
+		int interval = 1000, stop = keys.length/2+interval/3;	//between two checkpoints
+		BTree btree = new BTree(3, k, new File(directory, "resume").getPath());
+		String fileName = btree.getFileName();
+		if (copyOnWrite)
+			btree.enableCopyOnWrite();
+		else
+			btree.enableCheckpoints();
+		GeneBankCreateBTree.Checkpointer checkpoints = new GeneBankCreateBTree.Checkpointer(btree, interval, gbk);
+		int[] inserted = {0};
+		try {
+			GeneBankCreateBTree.insertSequences(key -> {
+				if (inserted[0] == stop)
+					throw new IOException("Stopped");
+				inserted[0]++;
+				btree.BTreeInsert(key);
+			}, gbk, k, false, checkpoints);
+			check(false, description+": the build stops");
+		} catch (IOException e) {
+			//the build was "killed"
+		}
+		btree.close();
+		if (copyOnWrite)
+			checkContents(fileName, count(keys, stop/interval*interval), description+" at the last checkpoint");
+
+		GeneBankCreateBTree.main(new String[] {"--resume", fileName, gbk.getPath()});
+		checkContents(fileName, count(keys, keys.length), description+" after resuming");
+		check(!new File(fileName+".journal").exists(), description+": no journal left");
+	}
+
+	/**
+	 * Count a gbk file in a Count-Min sketch and check its header and size, that no
+	 * estimate is below the brute-force count, and that the heavy hitters read back from
+	 * the file are the ones that were saved, with bounds that hold the true frequencies.
+	 */
+	private static void checkSketch(File gbk, int k) throws IOException {
+		int heavyHitters = 20;
+		TreeMap<Long,Integer> expected = bruteForce(gbk, k);
+		long total = 0;
+		for (int frequency : expected.values())
+			total += frequency;
+		CountMinSketch sketch = new CountMinSketch(k, 1, heavyHitters, new File(directory, gbk.getName()).getPath());
+		GeneBankCreateBTree.insertSequences(sketch::insert, gbk, k, false, null);
+		sketch.save();
+		ByteArrayOutputStream saved = new ByteArrayOutputStream();
+		sketch.printHeavyHitters(new PrintStream(saved, true));
+		String fileName = sketch.getFileName();
+		sketch.close();
+
+		int depth, width;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+			check(in.readInt() == CountMinSketch.MAGIC && in.readByte() == k && in.skipBytes(3) == 3, "sketch: header");
+			depth = in.readInt();
+			width = in.readInt();
+			check(depth == CountMinSketch.DEFAULT_DEPTH && Integer.bitCount(width) == 1 && in.readLong() == total
+					&& in.readInt() == heavyHitters, "sketch: header fields");
+		}
+		check(new File(fileName).length() == 32+16L*depth+4L*depth*width+24L*heavyHitters, "sketch: file size");
+
+		CountMinSketch opened = (CountMinSketch) KmerIndex.open(fileName, 0);
+		try {
+			boolean atLeast = true;
+			for (long key=0; key<(1L<<(2*k)); key++)
+				atLeast &= opened.search(key) >= expected.getOrDefault(key, 0);
+			check(atLeast, "sketch: no estimate below the true frequency");
+
+			ByteArrayOutputStream read = new ByteArrayOutputStream();
+			opened.printHeavyHitters(new PrintStream(read, true));
+			check(read.toString().equals(saved.toString()) && opened.getHeavyHitterCount() == heavyHitters,
+					"sketch: heavy hitters read back");
+
+			//"<sequence>: <count> (error <= <error>)", most frequent first
+			boolean bounded = true;
+			long mostFrequent = expected.firstKey();
+			for (Map.Entry<Long,Integer> entry : expected.entrySet()) {
+				if (entry.getValue() > expected.get(mostFrequent))
+					mostFrequent = entry.getKey();
+			}
+			boolean listed = false;
+			for (String line : read.toString().split("\n")) {
+				String[] fields = line.split("[: ()<=]+");
+				int frequency = expected.getOrDefault(encode(fields[0]), 0);
+				long count = Long.parseLong(fields[1]), error = Long.parseLong(fields[3]);
+				bounded &= count-error <= frequency && frequency <= count;
+				listed |= encode(fields[0]) == mostFrequent;
+			}
+			check(bounded, "sketch: heavy hitter bounds");
+			check(listed, "sketch: the most frequent sequence is a heavy hitter");
+		} finally {
+			opened.close();
+		}
+	}
+
+	/**
+	 * Build a B+Tree of a gbk file, and export a BTree of it to another, and check the
+	 * header, the leaf chain, searches and prefix searches of both against the
+	 * brute-force count.
+	 */
+	private static void checkBPlusTree(File gbk, int k) throws IOException {
+		TreeMap<Long,Integer> expected = bruteForce(gbk, k);
+		BPlusTree built = new BPlusTree(k, new File(directory, gbk.getName()).getPath());
+		GeneBankCreateBTree.insertSequences(built::insert, gbk, k, false, null);
+		built.close();
+		BTree btree = buildTree(gbk, k, 0);
+		String exported = new File(directory, "exported").getPath();
+		BPlusTree.export(btree, exported);
+		btree.close();
+
+		for (String fileName : new String[] {built.getFileName(), exported}) {
+			String description = fileName.equals(exported) ? "exported B+Tree" : "B+Tree";
+			try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+				check(in.readInt() == BPlusTree.MAGIC && in.readByte() == k && in.skipBytes(3) == 3, description+": header");
+				in.readLong();	//root
+				in.readLong();	//first leaf
+				long nextFree = in.readLong();
+				check(in.readLong() == expected.size() && in.readInt() >= 1 && nextFree == new File(fileName).length(),
+						description+": header fields");
+			}
+
+			BPlusTree tree = (BPlusTree) KmerIndex.open(fileName, 0);
+			BPlusTree.LeafIterator iterator = tree.iterator();
+			boolean same = true;
+			for (Map.Entry<Long,Integer> entry : expected.entrySet()) {
+				TreeObject object = iterator.next();
+				same &= object != null && object.getKey() == entry.getKey() && object.getFrequency() == entry.getValue();
+			}
+			check(same && iterator.next() == null, description+": leaf chain");
+
+			for (String prefix : new String[] {"a", "cg", "tga", decode(expected.lastKey(), k)}) {
+				ArrayList<String> lines = new ArrayList<String>();
+				for (Map.Entry<Long,Integer> entry : expected.entrySet()) {
+					if (decode(entry.getKey(), k).startsWith(prefix))
+						lines.add(decode(entry.getKey(), k)+": "+entry.getValue());
+				}
+				ArrayList<String> found = new ArrayList<String>();
+				for (TreeObject object : tree.prefixSearch(prefix))
+					found.add(object.getSequence()+": "+object.getFrequency());
+				check(found.equals(lines), description+": prefix search \""+prefix+"\"");
+			}
+			checkSearches(tree, expected, description+": searches");
+		}
+	}
+
+	/**
+	 * Check the frequency spectrum of a BTree, with several numbers of threads, against
+	 * the one of the brute-force count.
+	 */
+	private static void checkSpectrum(File gbk, int k) throws IOException {
+		TreeMap<Long,Integer> expected = bruteForce(gbk, k);
+		TreeMap<Integer,Long> spectrum = new TreeMap<Integer,Long>();
+		for (int frequency : expected.values())
+			spectrum.merge(frequency, 1L, Long::sum);
+		BTree btree = buildTree(gbk, k, 4);
+		for (int threads : new int[] {1, 3, 8}) {
+			long[] computed = btree.frequencySpectrum(threads);
+			boolean same = computed.length > spectrum.lastKey();
+			for (int frequency=1; same && frequency<computed.length; frequency++)
+				same = computed[frequency] == spectrum.getOrDefault(frequency, 0L);
+			check(same, "spectrum with "+threads+" threads");
+		}
+		btree.close();
+	}
+
+	/**
+	 * Build BTrees of only the sequences that occur at least a minimum number of times
+	 * and check them against the brute-force count with the rarer sequences left out.
+	 * Also count many more keys than fit in memory at once, so KmerCounter has to spill
+	 * and merge runs in several passes, and check the counts.
+	 */
+	private static void checkMinCount(File gbk, int k) throws IOException {
+		for (int minCount : new int[] {1, 2, 3}) {
+			TreeMap<Long,Integer> expected = bruteForce(gbk, k);
+			expected.values().removeIf(frequency -> frequency < minCount);
+			BTree btree = new BTree(3, k, new File(directory, gbk.getName()).getPath());
+			GeneBankCreateBTree.insertCounted(btree, gbk, k, minCount, 1, false);
+			btree.finalize();
+			String fileName = btree.getFileName();
+			btree.close();
+			checkContents(fileName, expected, "minimum count "+minCount);
+			btree = new BTree(fileName);
+			check(btree.getMinCount() == (minCount > 1 ? minCount : 0), "minimum count "+minCount+": header");
+			btree.close();
+		}
+
+		//1 MB holds 131072 keys, so this spills about 150 runs
+		KmerCounter counter = new KmerCounter(1);
+		int[] expected = new int[1<<16];
+		Random random = new Random(1);
+		for (int i=0; i<20000000; i++) {
+			int key = random.nextInt(expected.length);
+			expected[key]++;
+			counter.add(key);
+		}
+		check(counter.getRunCount() > 64, "KmerCounter: spills more runs than it merges at once");
+		long[] last = {-1};
+		boolean[] same = {true};
+		counter.forEach((key, count) -> {
+			same[0] &= key > last[0] && expected[(int) key] == count;
+			expected[(int) key] = 0;
+			last[0] = key;
+		});
+		for (int count : expected)
+			same[0] &= count == 0;
+		check(same[0], "KmerCounter: counts after merging in passes");
+	}
+
+	/**
+	 * Serve a BTree on the loopback interface and check GET, BATCH (with a batch larger
+	 * than the socket buffers) and PREFIX replies against the brute-force count.
+	 */
+	private static void checkServer(File gbk, int k) throws IOException {
+		TreeMap<Long,Integer> expected = bruteForce(gbk, k);
+		BTree btree = buildTree(gbk, k, 3);
+		String fileName = btree.getFileName();
+		btree.close();
+
+		GeneBankServer server = new GeneBankServer(new String[] {fileName}, 0);
+		int port = server.bindLoopback(0);
+		Thread serving = new Thread(server::serve, "GeneBankTest-server");
+		serving.setDaemon(true);
+		serving.start();
+		GeneBankClient client = new GeneBankClient(port);
+		try {
+			//GET every possible sequence, including the ones that do not occur
+			for (long key=0; key<(1L<<(2*k)); key++)
+				check(client.get(decode(key, k)) == expected.getOrDefault(key, 0), "GET "+decode(key, k));
+
+			//every possible sequence, 50 times over, in one batch
+			ArrayList<String> sequences = new ArrayList<String>();
+			for (int i=0; i<50; i++) {
+				for (long key=0; key<(1L<<(2*k)); key++)
+					sequences.add(decode(key, k).toUpperCase());
+			}
+			int[] frequencies = client.batch(sequences);
+			boolean same = frequencies.length == sequences.size();
+			for (int i=0; same && i<frequencies.length; i++)
+				same = frequencies[i] == expected.getOrDefault(encode(sequences.get(i).toLowerCase()), 0);
+			check(same, "BATCH of "+sequences.size()+" sequences");
+
+			//a bad sequence in a batch is reported without losing the rest of the reply
+			sequences.clear();
+			sequences.add("acg");
+			sequences.add(decode(expected.firstKey(), k));
+			try {
+				client.batch(sequences);
+				check(false, "BATCH with a sequence of the wrong length");
+			} catch (IllegalArgumentException e) {
+				check(client.get(decode(expected.firstKey(), k)) == expected.firstEntry().getValue(),
+						"GET after a failed BATCH");
+			}
+
+			for (String prefix : new String[] {"a", "gc", "tta", "acgtac"}) {
+				ArrayList<String> lines = new ArrayList<String>();
+				for (Map.Entry<Long,Integer> entry : expected.entrySet()) {
+					if (decode(entry.getKey(), k).startsWith(prefix))
+						lines.add(decode(entry.getKey(), k)+": "+entry.getValue());
+				}
+				check(client.prefix(prefix, k).equals(lines), "PREFIX \""+prefix+"\"");
+			}
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,297 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+/**
+ * Replays a node access trace (see BTree.startTrace()) through simulated caches, so the
+ * hit rate of any cache size can be found without running the build or search again.
+ *
+ * LRU hit rates for every cache size are computed in one pass with Mattson's stack
+ * distance algorithm: an access hits an LRU cache of size c exactly when fewer than c
+ * other nodes were accessed since the last access to the same node. The number of
+ * distinct nodes in between is counted with a Fenwick tree over the access times, where
+ * only the latest access to each node is marked. FIFO, CLOCK and the optimal policy
+ * (evict the node used furthest in the future) are simulated for each listed size.
+ */
+public class GeneBankTraceReplay {
+
+	private static final int[] DEFAULT_SIZES = {10, 50, 100, 500, 1000, 5000};
+
+	private int[] nodes;		//node number of each access
+	private int reads, writes;
+	private int nodeCount;		//largest node number + 1
+
+	/**
+	 * Load a trace file.
+	 * @param traceFileName The trace file
+	 * @throws IOException If the file cannot be read or is not a trace file
+	 */
+	public GeneBankTraceReplay(String traceFileName) throws IOException {
+		File traceFile = new File(traceFileName);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile), 1<<16))) {
+			if (traceFile.length() < 4 || in.readInt() != BTree.TRACE_MAGIC)
+				throw new IOException(traceFileName+" is not a trace file");
+			nodes = new int[(int) ((traceFile.length()-4)/4)];
+			for (int i=0; i<nodes.length; i++) {
+				int access = in.readInt();
+				nodes[i] = access>>>1;
+				if ((access & 1) != 0)
+					writes++;
+				else
+					reads++;
+				nodeCount = Math.max(nodeCount, nodes[i]+1);
+			}
+		}
+	}
+
+	/**
+	 * Return the number of hits of an LRU cache of every size.
+	 * @return hits[c] is the number of hits with a cache of c nodes, for c from 0 to the
+	 * number of distinct nodes (larger caches hit as often as the last entry)
+	 */
+	public long[] lruHits() {
+		long[] distances = new long[nodeCount+1];	//number of accesses at each stack distance
+		long[] fenwick = new long[nodes.length+1];	//marks the latest access of each node
+		int[] last = new int[nodeCount];			//time of the latest access to each node, +1 (0 for never)
+		int distinct = 0;
+
+		for (int time=0; time<nodes.length; time++) {
+			int node = nodes[time];
+			if (last[node] != 0) {
+				//count the nodes whose latest access came after this node's latest access
+				int previous = last[node]-1;
+				long between = prefixSum(fenwick, time)-prefixSum(fenwick, previous+1);
+				distances[(int) between+1]++;
+				add(fenwick, previous, -1);
+			}
+			else
+				distinct++;
+			add(fenwick, time, 1);
+			last[node] = time+1;
+		}
+
+		long[] hits = new long[distinct+1];
+		for (int c=1; c<=distinct; c++)
+			hits[c] = hits[c-1]+distances[c];
+		return hits;
+	}
+
+	/**
+	 * Add a value at a position of a Fenwick tree.
+	 */
+	private static void add(long[] fenwick, int position, long value) {
+		for (int i=position+1; i<fenwick.length; i+=i&-i)
+			fenwick[i] += value;
+	}
+
+	/**
+	 * Return the sum of the values at positions [0,end) of a Fenwick tree.
+	 */
+	private static long prefixSum(long[] fenwick, int end) {
+		long sum = 0;
+		for (int i=end; i>0; i-=i&-i)
+			sum += fenwick[i];
+		return sum;
+	}
+
+	/**
+	 * Return the number of hits of a FIFO cache, which evicts the node that was added first.
+	 */
+	public long fifoHits(int size) {
+		boolean[] cached = new boolean[nodeCount];
+		int[] queue = new int[size];
+		int oldest = 0, count = 0;
+		long hits = 0;
+		for (int node : nodes) {
+			if (cached[node]) {
+				hits++;
+				continue;
+			}
+			if (count < size)
+				queue[count++] = node;
+			else {
+				cached[queue[oldest]] = false;
+				queue[oldest] = node;
+				oldest = (oldest+1)%size;
+			}
+			cached[node] = true;
+		}
+		return hits;
+	}
+
+	/**
+	 * Return the number of hits of a CLOCK cache, which gives every node that was used
+	 * since the hand last passed it a second chance before evicting it.
+	 */
+	public long clockHits(int size) {
+		int[] slot = new int[nodeCount];	//slot of each node, -1 if not cached
+		Arrays.fill(slot, -1);
+		int[] slots = new int[size];
+		boolean[] referenced = new boolean[size];
+		int hand = 0, count = 0;
+		long hits = 0;
+		for (int node : nodes) {
+			if (slot[node] >= 0) {
+				referenced[slot[node]] = true;
+				hits++;
+				continue;
+			}
+			int free;
+			if (count < size)
+				free = count++;
+			else {
+				while (referenced[hand]) {
+					referenced[hand] = false;
+					hand = (hand+1)%size;
+				}
+				slot[slots[hand]] = -1;
+				free = hand;
+				hand = (hand+1)%size;
+			}
+			slots[free] = node;
+			referenced[free] = false;
+			slot[node] = free;
+		}
+		return hits;
+	}
+
+	/**
+	 * Return the number of hits of the optimal cache, which evicts the node whose next
+	 * access is furthest in the future (Belady's algorithm). No policy can do better.
+	 */
+	public long optimalHits(int size) {
+		//find the time of the next access to the same node after every access
+		int[] next = new int[nodes.length];
+		int[] upcoming = new int[nodeCount];
+		Arrays.fill(upcoming, Integer.MAX_VALUE);
+		for (int time=nodes.length-1; time>=0; time--) {
+			next[time] = upcoming[nodes[time]];
+			upcoming[nodes[time]] = time;
+		}
+
+		//cached nodes ordered by next access; entries that are out of date are skipped
+		PriorityQueue<Long> byNextAccess = new PriorityQueue<Long>(Collections.reverseOrder());
+		int[] nextAccess = new int[nodeCount];
+		boolean[] cached = new boolean[nodeCount];
+		int count = 0;
+		long hits = 0;
+		for (int time=0; time<nodes.length; time++) {
+			int node = nodes[time];
+			if (cached[node])
+				hits++;
+			else {
+				if (count == size) {
+					while (true) {
+						long entry = byNextAccess.poll();
+						int victim = (int) entry;
+						if (cached[victim] && nextAccess[victim] == (int) (entry>>>32)) {
+							cached[victim] = false;
+							break;
+						}
+					}
+					count--;
+				}
+				cached[node] = true;
+				count++;
+			}
+			nextAccess[node] = next[time];
+			byNextAccess.add(((long) next[time]<<32) | node);
+		}
+		return hits;
+	}
+
+	/**
+	 * Print the number of accesses and the hit rate of each policy for each cache size.
+	 */
+	public void printTable(int[] sizes, long[] lru, PrintStream out) {
+		int distinct = lru.length-1;
+		out.println("Accesses: "+nodes.length+" ("+reads+" reads, "+writes+" writes), distinct nodes: "+distinct);
+		out.println("cache size       LRU      FIFO     CLOCK   optimal");
+		for (int size : sizes) {
+			out.println(String.format("%10d  %s  %s  %s  %s", size,
+					rate(lru[Math.min(size, distinct)]), rate(fifoHits(size)), rate(clockHits(size)), rate(optimalHits(size))));
+		}
+	}
+
+	/**
+	 * Format a number of hits as a hit rate.
+	 */
+	private String rate(long hits) {
+		return String.format("%7.2f%%", (nodes.length > 0) ? 100.0*hits/nodes.length : 0.0);
+	}
+
+	/**
+	 * Run the program.
+	 */
+	public static void main(String[] args) {
+		int[] sizes = DEFAULT_SIZES;
+		String traceFileName = null, curveFileName = null;
+
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("--sizes")) {
+					String[] list = args[++i].split(",");
+					sizes = new int[list.length];
+					for (int j=0; j<list.length; j++) {
+						sizes[j] = Integer.parseInt(list[j]);
+						if (sizes[j] < 1)
+							throw new IllegalArgumentException("Cache sizes must be positive");
+					}
+				}
+				else if (args[i].equals("--curve"))
+					curveFileName = args[++i];
+				else if (traceFileName == null)
+					traceFileName = args[i];
+				else
+					throw new IllegalArgumentException("Unexpected argument "+args[i]);
+			}
+			if (traceFileName == null)
+				throw new IllegalArgumentException("A trace file must be specified");
+			if (!new File(traceFileName).exists())
+				throw new FileNotFoundException(traceFileName);
+
+			GeneBankTraceReplay replay = new GeneBankTraceReplay(traceFileName);
+			long[] lru = replay.lruHits();
+			replay.printTable(sizes, lru, System.out);
+
+			//the LRU hit rate of every cache size up to the number of distinct nodes
+			if (curveFileName != null) {
+				try (PrintStream curve = new PrintStream(curveFileName)) {
+					curve.println("cache size\tLRU hit rate");
+					for (int size=1; size<lru.length; size++)
+						curve.println(size+"\t"+(double) lru[size]/replay.nodes.length);
+				}
+			}
+		}
+		catch (FileNotFoundException e) {
+			System.out.println("Error: Please make sure that the filename is valid.");
+			e.printStackTrace();
+		}
+		catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			e.printStackTrace();
+			printUsage();
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error: Could not read the trace file.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method which will print the usage statement to the
+	 * console.
+	 */
+	private static void printUsage() {
+		System.out.println("Usage: java GeneBankTraceReplay [--sizes <size>,<size>,...] [--curve <output file>] <trace file>"
+				+ "\nNote: Prints the LRU, FIFO, CLOCK and optimal hit rates for each cache size (default "
+				+ Arrays.toString(DEFAULT_SIZES)+")."
+				+ "\n      --curve also writes the LRU hit rate of every cache size to <output file>.");
+	}
+}
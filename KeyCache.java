@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A bounded cache of search results (key to frequency) in front of another index, so a
+ * query that was answered recently is answered again without touching any nodes.
+ *
+ * The results are kept in primitive arrays: an open addressing hash table (linear
+ * probing) maps each key to its slot, and slots are evicted in CLOCK order. Which results
+ * are kept is decided as in TinyLFU: every lookup is counted in a small Count-Min sketch of
+ * 4-bit counters, and when the cache is full a new result only replaces the CLOCK victim
+ * if its key has been looked up more often. The counters are halved every 10 lookups per
+ * entry, so old popularity fades. Keys looked up once (most keys of a typical query file)
+ * therefore never push out keys that keep coming back.
+ */
+public class KeyCache implements KmerIndex {
+
+	private static final int DEPTH = 4;			//rows of the frequency sketch
+	private static final int MAX_COUNT = 15;	//counters saturate here (4 bits)
+	private static final int RESET_FACTOR = 10;	//lookups per entry between halvings
+
+	private final KmerIndex index;
+	private final int capacity;
+	private final long[] keys;			//by slot
+	private final int[] frequencies;	//by slot
+	private final boolean[] referenced;	//by slot, for CLOCK
+	private final int[] table;			//hash table of slot numbers (-1 for empty)
+	private final int tableMask;
+	private int size, hand;
+
+	private final byte[] counters;		//frequency sketch, one byte per 4-bit counter
+	private final int counterBits;		//each row has 2^counterBits counters
+	private final long[] seeds;
+	private int lookups;				//since the counters were last halved
+	private final int resetInterval;
+
+	private long hits, misses, rejected;
+
+	/**
+	 * Put a cache of results in front of an index.
+	 * @param index The index to search on a miss
+	 * @param capacity The maximum number of results to keep
+	 */
+	public KeyCache(KmerIndex index, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("The key cache size must be positive");
+		this.index = index;
+		this.capacity = capacity;
+		keys = new long[capacity];
+		frequencies = new int[capacity];
+		referenced = new boolean[capacity];
+
+		int tableSize = Integer.highestOneBit(Math.max(2*capacity-1, 1))<<1;	//at most half full
+		table = new int[tableSize];
+		Arrays.fill(table, -1);
+		tableMask = tableSize-1;
+
+		counterBits = 32-Integer.numberOfLeadingZeros(Math.max(4*capacity-1, 63));
+		counters = new byte[DEPTH<<counterBits];
+		seeds = new long[DEPTH];
+		Random random = new Random(0x5EED);
+		for (int row=0; row<DEPTH; row++)
+			seeds[row] = random.nextLong() | 1;
+		resetInterval = RESET_FACTOR*capacity;
+	}
+
+	/**
+	 * Return the frequency of a sequence, from the cache if possible.
+	 */
+	public int search(long key) throws IOException {
+		recordLookup(key);
+		int slot = find(key);
+		if (slot >= 0) {
+			hits++;
+			referenced[slot] = true;
+			return frequencies[slot];
+		}
+		misses++;
+		int frequency = index.search(key);
+		add(key, frequency);
+		return frequency;
+	}
+
+	/**
+	 * Return the slot of a key (-1 if it is not cached).
+	 */
+	private int find(long key) {
+		for (int i=hash(key); ; i=(i+1)&tableMask) {
+			int slot = table[i];
+			if (slot < 0)
+				return -1;
+			if (keys[slot] == key)
+				return slot;
+		}
+	}
+
+	/**
+	 * Return the hash table position a key starts probing from.
+	 */
+	private int hash(long key) {
+		return (int) ((key*0x9E3779B97F4A7C15L)>>>32) & tableMask;
+	}
+
+	/**
+	 * Cache a result that was just looked up, if there is room or it is looked up more
+	 * often than the result it would replace.
+	 */
+	private void add(long key, int frequency) {
+		int slot;
+		if (size < capacity)
+			slot = size++;
+		else {
+			//the CLOCK hand gives every recently used slot a second chance
+			while (referenced[hand]) {
+				referenced[hand] = false;
+				hand = (hand+1)%capacity;
+			}
+			if (estimate(key) <= estimate(keys[hand])) {
+				rejected++;
+				return;
+			}
+			slot = hand;
+			hand = (hand+1)%capacity;
+			remove(keys[slot]);
+		}
+		keys[slot] = key;
+		frequencies[slot] = frequency;
+		referenced[slot] = false;
+		int i = hash(key);
+		while (table[i] >= 0)
+			i = (i+1)&tableMask;
+		table[i] = slot;
+	}
+
+	/**
+	 * Remove a key from the hash table, moving back later entries of its probe run so
+	 * that lookups still find them.
+	 */
+	private void remove(long key) {
+		int i = hash(key);
+		while (keys[table[i]] != key)
+			i = (i+1)&tableMask;
+		table[i] = -1;
+		for (int j=(i+1)&tableMask; table[j] >= 0; j=(j+1)&tableMask) {
+			int home = hash(keys[table[j]]);
+			//move the entry back if its home position is not between the gap and it
+			if (((j-home)&tableMask) >= ((j-i)&tableMask)) {
+				table[i] = table[j];
+				table[j] = -1;
+				i = j;
+			}
+		}
+	}
+
+	/**
+	 * Count a lookup of a key in the frequency sketch, halving every counter once enough
+	 * lookups have been counted.
+	 */
+	private void recordLookup(long key) {
+		for (int row=0; row<DEPTH; row++) {
+			int i = counterIndex(row, key);
+			if (counters[i] < MAX_COUNT)
+				counters[i]++;
+		}
+		if (++lookups == resetInterval) {
+			for (int i=0; i<counters.length; i++)
+				counters[i] >>= 1;
+			lookups = 0;
+		}
+	}
+
+	/**
+	 * Return the estimated number of recent lookups of a key.
+	 */
+	private int estimate(long key) {
+		int estimate = MAX_COUNT;
+		for (int row=0; row<DEPTH; row++)
+			estimate = Math.min(estimate, counters[counterIndex(row, key)]);
+		return estimate;
+	}
+
+	private int counterIndex(int row, long key) {
+		return (row<<counterBits) | (int) ((seeds[row]*key)>>>(64-counterBits));
+	}
+
+	public int getK() {
+		return index.getK();
+	}
+
+	/**
+	 * Return the number of searches answered from the cache.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Return the number of searches that went to the index.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Return the number of results that were not cached because they were looked up
+	 * less often than the result they would have replaced.
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Close the index behind the cache.
+	 */
+	public void close() throws IOException {
+		index.close();
+	}
+}
@@ -0,0 +1,218 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Counts sequences exactly in a bounded amount of memory. Keys are collected in a fixed
+ * size buffer; when it fills up, it is sorted and written to a temporary run file as
+ * (key, count) pairs in key order. The counts are then read back by merging the runs
+ * (and what is left in the buffer), so every sequence comes out once, in increasing key
+ * order, with its total count - the order BTree.BulkLoader needs. At most MAX_FAN_IN
+ * runs are read at once; if there are more, they are first merged in passes into fewer,
+ * longer runs, so the open files and read buffers stay bounded however much is spilled.
+ * Every run file is deleted as soon as it has been merged, and the runs are kept together
+ * in one temporary directory, which is deleted at the end.
+ */
+public class KmerCounter {
+
+	private static final int MAX_FAN_IN = 64;	//most runs merged at once
+
+	/**
+	 * Receives the counted sequences in increasing key order.
+	 */
+	public interface CountVisitor {
+		void visit(long key, int count) throws IOException;
+	}
+
+	private final long[] buffer;
+	private int size;
+	private final ArrayList<File> runs = new ArrayList<File>();
+	private File directory;	//holds the run files; created at the first spill
+	private int runNumber;	//names the next run file
+
+	/**
+	 * Create a counter.
+	 * @param megabytes The memory to use for the buffer of keys
+	 */
+	public KmerCounter(int megabytes) {
+		if (megabytes < 1)
+			throw new IllegalArgumentException("The counting memory must be at least 1 megabyte");
+		buffer = new long[(int) Math.min(((long) megabytes<<20)/8, Integer.MAX_VALUE-8)];
+	}
+
+	/**
+	 * Count one occurrence of a sequence.
+	 * @param key The sequence in binary format
+	 * @throws IOException If the buffer is full and cannot be written to a run file
+	 */
+	public void add(long key) throws IOException {
+		if (size == buffer.length)
+			spill();
+		buffer[size++] = key;
+	}
+
+	/**
+	 * Sort the buffer and write it to a new run file, one (key, count) pair per sequence.
+	 */
+	private void spill() throws IOException {
+		Arrays.sort(buffer, 0, size);
+		File run = newRunFile();
+		runs.add(run);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1<<16))) {
+			for (int i=0; i<size; ) {
+				int j = i;
+				while (j < size && buffer[j] == buffer[i])
+					j++;
+				out.writeLong(buffer[i]);
+				out.writeInt(j-i);
+				i = j;
+			}
+		}
+		size = 0;
+	}
+
+	/**
+	 * Return a new file for a run in the temporary directory.
+	 */
+	private File newRunFile() throws IOException {
+		if (directory == null)
+			directory = Files.createTempDirectory("genebank-counts").toFile();
+		return new File(directory, (runNumber++)+".run");
+	}
+
+	/**
+	 * Return the number of run files written so far.
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * One run (or the buffer), positioned at its current sequence.
+	 */
+	private class Run implements Comparable<Run> {
+		DataInputStream in;		//null for the buffer
+		int position;			//in the buffer
+		long key;
+		int count;
+
+		/**
+		 * Move to the next sequence of the run.
+		 * @return False if there are no more sequences
+		 */
+		boolean next() throws IOException {
+			if (in == null) {
+				if (position == size)
+					return false;
+				key = buffer[position];
+				count = 0;
+				while (position < size && buffer[position] == key) {
+					position++;
+					count++;
+				}
+				return true;
+			}
+			try {
+				key = in.readLong();
+				count = in.readInt();
+				return true;
+			}
+			catch (EOFException e) {
+				in.close();
+				return false;
+			}
+		}
+
+		public int compareTo(Run other) {
+			return Long.compare(key, other.key);
+		}
+	}
+
+	/**
+	 * Visit every counted sequence once, in increasing key order, with its total count.
+	 * The run files are deleted afterwards.
+	 * @throws IOException If a run file cannot be read or written
+	 */
+	public void forEach(CountVisitor visitor) throws IOException {
+		Arrays.sort(buffer, 0, size);
+		try {
+			//merge the oldest runs into one until the rest and the buffer can be merged at once
+			while (runs.size() > MAX_FAN_IN-1) {
+				ArrayList<File> pass = new ArrayList<File>(runs.subList(0, MAX_FAN_IN));
+				runs.subList(0, MAX_FAN_IN).clear();
+				try {
+					File merged = newRunFile();
+					runs.add(merged);
+					try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), 1<<16))) {
+						merge(pass, false, (key, count) -> {
+							out.writeLong(key);
+							out.writeInt(count);
+						});
+					}
+				} finally {
+					for (File file : pass)
+						file.delete();
+				}
+			}
+			merge(runs, true, visitor);
+		} finally {
+			for (File file : runs)
+				file.delete();
+			runs.clear();
+			size = 0;
+			if (directory != null) {
+				directory.delete();
+				directory = null;
+			}
+		}
+	}
+
+	/**
+	 * Merge run files (and the sorted buffer, if includeBuffer is true), visiting every
+	 * sequence in them once, in increasing key order, with its total count.
+	 */
+	private void merge(ArrayList<File> files, boolean includeBuffer, CountVisitor visitor) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		try {
+			if (includeBuffer) {
+				Run buffered = new Run();
+				if (buffered.next())
+					queue.add(buffered);
+			}
+			for (File file : files) {
+				Run run = new Run();
+				run.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1<<16));
+				if (run.next())
+					queue.add(run);
+			}
+
+			while (!queue.isEmpty()) {
+				//take every run positioned at the smallest key
+				long key = queue.peek().key;
+				long count = 0;
+				while (!queue.isEmpty() && queue.peek().key == key) {
+					Run run = queue.poll();
+					count += run.count;
+					if (run.next())
+						queue.add(run);
+				}
+				visitor.visit(key, (int) Math.min(count, Integer.MAX_VALUE));
+			}
+		} finally {
+			for (Run run : queue) {
+				if (run.in != null)
+					run.in.close();
+			}
+		}
+	}
+}
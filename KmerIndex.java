@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A file that can be searched for the frequency of DNA sequences of one length k.
+ * GeneBankSearch works with any kind of index through this interface; open() looks
+ * at the start of the file to decide which kind it is.
+ */
+public interface KmerIndex {
+
+	/**
+	 * Return the sequence length of the index.
+	 */
+	int getK();
+
+	/**
+	 * Return the frequency of a sequence (0 if it does not occur).
+	 * @param key The sequence in binary format (see TreeObject)
+	 * @throws IOException If there is an error accessing the file
+	 */
+	int search(long key) throws IOException;
+
+	/**
+	 * Close the index file.
+	 * @throws IOException If the file cannot be closed
+	 */
+	void close() throws IOException;
+
+	/**
+	 * Open an index file of any kind.
+	 * @param fileName The index file
+	 * @param cacheSize The size of the cache to use, if the index has one (0 for no cache)
+	 * @return The opened index
+	 * @throws IOException If the file cannot be read
+	 */
+	static KmerIndex open(String fileName, int cacheSize) throws IOException {
+		int magic;
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+			magic = (file.length() >= 4) ? file.readInt() : 0;
+		}
+		if (magic == DenseIndex.MAGIC)
+			return new DenseIndex(fileName);
+		if (magic == SortedArrayIndex.MAGIC)
+			return new SortedArrayIndex(fileName);
+		if (magic == CountMinSketch.MAGIC)
+			return new CountMinSketch(fileName);
+		if (magic == BPlusTree.MAGIC)
+			return new BPlusTree(fileName);
+		return (cacheSize > 0) ? new BTree(fileName, cacheSize) : new BTree(fileName);
+	}
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Streams the sequences of length k out of a gbk file, already converted to the
+ * binary keys used by TreeObject (A = 00, C = 01, G = 10, T = 11).
+ *
+ * Only the part of each record between the ORIGIN line and the // line is used.
+ * Line numbers, spaces and other characters are skipped, and a sequence is never
+ * built across an 'n' or across two records. Each key is computed from the previous
+ * one by shifting in the next base, so no Strings are created.
+ */
+public class KmerParser {
+
+	private static final byte[] ORIGIN = {'O','R','I','G','I','N'};
+	private static final byte[] END = {'/','/'};
+	private static final byte SKIP = -1, BREAK = -2;
+	private static final byte[] CODES = new byte[256];	//binary value of each base
+
+	static {
+		Arrays.fill(CODES, SKIP);
+		CODES['a'] = CODES['A'] = 0;
+		CODES['c'] = CODES['C'] = 1;
+		CODES['g'] = CODES['G'] = 2;
+		CODES['t'] = CODES['T'] = 3;
+		CODES['n'] = CODES['N'] = BREAK;
+	}
+
+	private final InputStream in;
+	private final int k;
+	private final long mask;	//the lowest 2k bits
+	private final byte[] buffer = new byte[1<<16];
+	private int position, length;
+	private long offset;		//number of bytes of the stream before the current buffer
+
+	private boolean inSequence;	//true between ORIGIN and //
+	private int match;			//how much of ORIGIN or // the current line starts with (-1 if it doesn't)
+	private boolean skipLine;	//ignore the rest of the current line
+	private long window;		//the last (up to) k bases
+	private int windowLength;	//number of valid bases in window
+
+	/**
+	 * Create a parser for the given gbk stream.
+	 * @param in The stream to read
+	 * @param k The length of each sequence. Range: [1,31]
+	 */
+	public KmerParser(InputStream in, int k) {
+		if (k<1 || k>31)
+			throw new IllegalArgumentException("Parameter 'k' is out of bounds [1,31].");
+		this.in = in;
+		this.k = k;
+		mask = ~(~0L<<(2*k));
+	}
+
+	/**
+	 * Create a parser that continues where another one stopped.
+	 * @param in The stream to read, already positioned at state.offset
+	 * @param k The length of each sequence. Range: [1,31]
+	 * @param state The state of the other parser (see getState())
+	 */
+	public KmerParser(InputStream in, int k, State state) {
+		this(in, k);
+		offset = state.offset;
+		inSequence = state.inSequence;
+		match = state.match;
+		skipLine = state.skipLine;
+		window = state.window;
+		windowLength = state.windowLength;
+	}
+
+	/**
+	 * Everything needed to continue parsing from the current position of a parser.
+	 */
+	public static class State {
+		public static final int SIZE = 26;	//number of bytes written by put()
+
+		long offset;		//number of bytes of the stream already parsed
+		boolean inSequence;
+		int match;
+		boolean skipLine;
+		long window;
+		int windowLength;
+
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Write the state into a buffer.
+		 */
+		public void put(ByteBuffer buffer) {
+			buffer.putLong(offset);
+			buffer.put((byte) (inSequence?1:0));
+			buffer.putInt(match);
+			buffer.put((byte) (skipLine?1:0));
+			buffer.putLong(window);
+			buffer.putInt(windowLength);
+		}
+
+		/**
+		 * Read a state written by put().
+		 */
+		public static State get(ByteBuffer buffer) {
+			State state = new State();
+			state.offset = buffer.getLong();
+			state.inSequence = buffer.get() != 0;
+			state.match = buffer.getInt();
+			state.skipLine = buffer.get() != 0;
+			state.window = buffer.getLong();
+			state.windowLength = buffer.getInt();
+			return state;
+		}
+	}
+
+	/**
+	 * Return the state of the parser right after the last key it returned.
+	 */
+	public State getState() {
+		State state = new State();
+		state.offset = offset+position;
+		state.inSequence = inSequence;
+		state.match = match;
+		state.skipLine = skipLine;
+		state.window = window;
+		state.windowLength = windowLength;
+		return state;
+	}
+
+	/**
+	 * Return the key of the next sequence of length k.
+	 * @return The next key, or -1 at the end of the file
+	 * @throws IOException If the stream cannot be read
+	 */
+	public long next() throws IOException {
+		while (true) {
+			if (position == length) {
+				offset += length;
+				length = in.read(buffer, 0, buffer.length);
+				position = 0;
+				if (length <= 0) {
+					length = 0;
+					return -1;
+				}
+			}
+
+			byte c = buffer[position++];
+			if (c == '\n') {
+				match = 0;
+				skipLine = false;
+				continue;
+			}
+			if (skipLine)
+				continue;
+
+			//check whether the line starts with the keyword that changes the state
+			if (match >= 0) {
+				byte[] keyword = inSequence ? END : ORIGIN;
+				if (c == keyword[match]) {
+					if (++match == keyword.length) {
+						inSequence = !inSequence;
+						windowLength = 0;
+						skipLine = true;
+					}
+					continue;
+				}
+				match = -1;
+			}
+
+			if (!inSequence)
+				continue;
+			byte code = CODES[c & 0xff];
+			if (code == SKIP)
+				continue;
+			if (code == BREAK) {
+				windowLength = 0;
+				continue;
+			}
+			window = ((window<<2) | code) & mask;
+			if (++windowLength >= k)
+				return window;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed-size ring buffer of longs for passing values from exactly one producer
+ * thread to exactly one consumer thread without allocating anything per value.
+ *
+ * The producer blocks while the buffer is full (backpressure) and calls close() when
+ * it is done, or fail() if it cannot continue. The consumer takes values in batches
+ * and is told when the stream has ended (or why it failed).
+ */
+public class LongRingBuffer {
+
+	private static final int PUBLISH_INTERVAL = 256;	//values the producer writes before publishing them
+
+	private final long[] values;
+	private final int mask;
+
+	private volatile long writeIndex;	//number of values published by the producer
+	private volatile long readIndex;	//number of values taken by the consumer
+	private volatile boolean closed;
+	private volatile Throwable error;
+
+	private long localWrite;	//producer's own count, which may be ahead of writeIndex
+	private long cachedRead;	//producer's last look at readIndex
+
+	/**
+	 * Create a new ring buffer.
+	 * @param capacity The number of values the buffer can hold (rounded up to a power of 2)
+	 */
+	public LongRingBuffer(int capacity) {
+		if (capacity < 1 || capacity > (1<<30))
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		values = new long[Math.max(size, PUBLISH_INTERVAL)];
+		mask = values.length-1;
+	}
+
+	/**
+	 * Add a value to the buffer, waiting for the consumer if the buffer is full.
+	 * Producer thread only.
+	 */
+	public void put(long value) throws InterruptedException {
+		if (localWrite-cachedRead == values.length) {
+			writeIndex = localWrite;	//make sure the consumer can see everything before waiting on it
+			int spins = 0;
+			while (localWrite-(cachedRead = readIndex) == values.length) {
+				if (error != null)
+					throw new InterruptedException("The consumer stopped");
+				pause(spins++);
+			}
+		}
+		values[(int) localWrite & mask] = value;
+		localWrite++;
+		if ((localWrite & (PUBLISH_INTERVAL-1)) == 0)
+			writeIndex = localWrite;
+	}
+
+	/**
+	 * Mark the end of the stream. Everything that was put is still delivered.
+	 * Producer thread only.
+	 */
+	public void close() {
+		writeIndex = localWrite;
+		closed = true;
+	}
+
+	/**
+	 * End the stream because of an error, which is rethrown to the consumer. Can also be
+	 * called by the consumer to make a blocked producer give up.
+	 */
+	public void fail(Throwable e) {
+		error = e;
+		closed = true;
+	}
+
+	/**
+	 * Copy up to batch.length values into batch, waiting until at least one value is
+	 * available. Consumer thread only.
+	 * @return The number of values copied, or -1 if the stream has ended
+	 * @throws IOException If the producer failed
+	 */
+	public int take(long[] batch) throws IOException {
+		long read = readIndex;
+		long available;
+		int spins = 0;
+		while ((available = writeIndex-read) == 0) {
+			if (closed && writeIndex == read) {
+				if (error != null)
+					throw (error instanceof IOException) ? (IOException) error : new IOException(error);
+				return -1;
+			}
+			pause(spins++);
+		}
+
+		int n = (int) Math.min(available, batch.length);
+		for (int i=0; i<n; i++)
+			batch[i] = values[(int) (read+i) & mask];
+		readIndex = read+n;
+		return n;
+	}
+
+	/**
+	 * Back off while waiting on the other thread: spin briefly, then park.
+	 */
+	private static void pause(int spins) {
+		if (spins < 100)
+			Thread.onSpinWait();
+		else
+			LockSupport.parkNanos(50000);
+	}
+}
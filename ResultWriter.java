@@ -0,0 +1,138 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes search results through a channel, formatting them directly into one reusable
+ * buffer so that a result costs no String building and no flush of its own.
+ *
+ * Formats:
+ *   TEXT   - "<sequence>: <frequency>" lines, as GeneBankSearch has always printed
+ *   TSV    - "<sequence>\t<frequency>" lines
+ *   BINARY - key (8 bytes) followed by frequency (4 bytes) for each result, big-endian
+ */
+public class ResultWriter {
+
+	public enum Format { TEXT, TSV, BINARY }
+
+	private static final int BUFFER_SIZE = 1<<18;
+	private static final int MAX_RESULT_SIZE = 64;	//longest formatted result besides the sequence
+	private static final byte[] BELOW_THRESHOLD = "below threshold".getBytes();
+
+	private WritableByteChannel channel;
+	private Format format;
+	private boolean writeMisses;		//whether sequences with frequency 0 are written
+	private boolean belowThreshold;		//whether misses are written as "below threshold" instead of 0
+	private ByteBuffer buffer;
+
+	/**
+	 * Create a result writer for standard output.
+	 * @param format The output format
+	 * @param writeMisses Whether to write results for sequences that were not found
+	 */
+	public ResultWriter(Format format, boolean writeMisses) {
+		this(new FileOutputStream(FileDescriptor.out).getChannel(), format, writeMisses);
+	}
+
+	/**
+	 * Create a result writer.
+	 * @param channel The channel to write to
+	 * @param format The output format
+	 * @param writeMisses Whether to write results for sequences that were not found
+	 */
+	public ResultWriter(WritableByteChannel channel, Format format, boolean writeMisses) {
+		this.channel = channel;
+		this.format = format;
+		this.writeMisses = writeMisses;
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	}
+
+	/**
+	 * Write misses as "below threshold" instead of frequency 0 (except in BINARY), for
+	 * indexes that leave out the sequences that occur fewer than a minimum number of times.
+	 */
+	public void setBelowThreshold(boolean belowThreshold) {
+		this.belowThreshold = belowThreshold;
+	}
+
+	/**
+	 * Write the result of one query.
+	 * @param sequence The query sequence, written in lower case (not used by BINARY)
+	 * @param key The sequence in binary format (only used by BINARY)
+	 * @param frequency The frequency found for the sequence
+	 * @throws IOException If the output cannot be written
+	 */
+	public void write(CharSequence sequence, long key, int frequency) throws IOException {
+		if (frequency == 0 && !writeMisses)
+			return;
+		if (buffer.remaining() < sequence.length()+MAX_RESULT_SIZE)
+			flush();
+
+		if (format == Format.BINARY) {
+			buffer.putLong(key);
+			buffer.putInt(frequency);
+			return;
+		}
+		for (int i=0; i<sequence.length(); i++) {
+			char c = sequence.charAt(i);
+			buffer.put((byte) ((c >= 'A' && c <= 'Z') ? c+('a'-'A') : c));
+		}
+		if (format == Format.TEXT) {
+			buffer.put((byte) ':');
+			buffer.put((byte) ' ');
+		}
+		else
+			buffer.put((byte) '\t');
+		if (frequency == 0 && belowThreshold)
+			buffer.put(BELOW_THRESHOLD);
+		else
+			putInt(frequency);
+		buffer.put((byte) '\n');
+	}
+
+	/**
+	 * Put the decimal digits of a non-negative int into the buffer.
+	 */
+	private void putInt(int value) {
+		int start = buffer.position();
+		do {
+			buffer.put((byte) ('0'+value%10));
+			value /= 10;
+		} while (value != 0);
+
+		//the digits were written least significant first
+		for (int i=start, j=buffer.position()-1; i<j; i++, j--) {
+			byte digit = buffer.get(i);
+			buffer.put(i, buffer.get(j));
+			buffer.put(j, digit);
+		}
+	}
+
+	/**
+	 * Write everything in the buffer to the channel.
+	 * @throws IOException If the output cannot be written
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Parse the name of an output format.
+	 * @param name "text", "tsv" or "binary"
+	 * @return The output format
+	 */
+	public static Format parseFormat(String name) {
+		if (name.equals("text"))
+			return Format.TEXT;
+		if (name.equals("tsv"))
+			return Format.TSV;
+		if (name.equals("binary"))
+			return Format.BINARY;
+		throw new IllegalArgumentException("Output format must be text, tsv or binary");
+	}
+}
@@ -0,0 +1,177 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * A read-only index that stores every (key, frequency) pair of a finished BTree in one
+ * packed array sorted by key. Because keys are spread fairly evenly over their range, a
+ * key's position can be estimated from its value (interpolation search), so a lookup only
+ * touches a few entries. Every SAMPLE_INTERVAL-th key is also stored at the end of the
+ * file and kept in memory, so each search starts from a block of at most SAMPLE_INTERVAL
+ * entries. The entries are memory-mapped.
+ *
+ * File layout:
+ *   magic "GBSA" (4 bytes), k (1 byte), unused (3 bytes), number of entries (8 bytes),
+ *   sample interval (4 bytes), unused (12 bytes),
+ *   then every entry: key (8 bytes), frequency (4 bytes),
+ *   then every sample: key (8 bytes)
+ */
+public class SortedArrayIndex implements KmerIndex {
+
+	public static final int MAGIC = 0x47425341;	//"GBSA"
+	private static final int HEADER_SIZE = 32;
+	private static final int ENTRY_SIZE = 12;
+	private static final int SAMPLE_INTERVAL = 256;
+	private static final int ENTRIES_PER_SEGMENT = 1<<27;	//entries per mapped segment (a mapping is limited to 2 GB)
+
+	private int k;
+	private long count;					//number of entries
+	private int sampleInterval;
+	private long[] samples;				//the key of every sampleInterval-th entry
+	private MappedByteBuffer[] segments;
+	private RandomAccessFile file;
+
+	/**
+	 * Open an exported index for searching.
+	 * @param fileName The index file
+	 * @throws IOException If the file cannot be read or is not a sorted array index
+	 */
+	public SortedArrayIndex(String fileName) throws IOException {
+		file = new RandomAccessFile(fileName, "r");
+		if (file.readInt() != MAGIC)
+			throw new IOException(fileName+" is not a sorted array index file");
+		k = file.readByte();
+		file.skipBytes(3);
+		count = file.readLong();
+		sampleInterval = file.readInt();
+
+		FileChannel channel = file.getChannel();
+		segments = new MappedByteBuffer[(int) ((count+ENTRIES_PER_SEGMENT-1)/ENTRIES_PER_SEGMENT)];
+		for (int i=0; i<segments.length; i++) {
+			long first = (long) i*ENTRIES_PER_SEGMENT;
+			long entries = Math.min(ENTRIES_PER_SEGMENT, count-first);
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE+first*ENTRY_SIZE, entries*ENTRY_SIZE);
+		}
+
+		samples = new long[(int) ((count+sampleInterval-1)/sampleInterval)];
+		file.seek(HEADER_SIZE+count*ENTRY_SIZE);
+		for (int i=0; i<samples.length; i++)
+			samples[i] = file.readLong();
+	}
+
+	/**
+	 * Write every TreeObject of a finished BTree, in order, to a new sorted array index file.
+	 * @param btree The BTree to export
+	 * @param fileName The index file to create
+	 * @throws IOException If either file cannot be accessed
+	 */
+	public static void export(BTree btree, String fileName) throws IOException {
+		File tmp = new File(fileName);
+		if (tmp.exists())
+			tmp.delete();
+
+		long count = 0;
+		ArrayList<Long> samples = new ArrayList<Long>();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1<<16))) {
+			out.write(new byte[HEADER_SIZE]);	//filled in once the number of entries is known
+			BTree.TreeIterator iterator = btree.iterator();
+			TreeObject object;
+			while ((object = iterator.next()) != null) {
+				if (count % SAMPLE_INTERVAL == 0)
+					samples.add(object.getKey());
+				out.writeLong(object.getKey());
+				out.writeInt(object.getFrequency());
+				count++;
+			}
+			for (long sample : samples)
+				out.writeLong(sample);
+		}
+
+		try (RandomAccessFile out = new RandomAccessFile(fileName, "rw")) {
+			out.writeInt(MAGIC);
+			out.writeByte(btree.getK());
+			out.write(new byte[3]);
+			out.writeLong(count);
+			out.writeInt(SAMPLE_INTERVAL);
+		}
+	}
+
+	/**
+	 * Return the key of the entry at the given index.
+	 */
+	private long getKey(long index) {
+		return segments[(int) (index/ENTRIES_PER_SEGMENT)].getLong((int) (index%ENTRIES_PER_SEGMENT)*ENTRY_SIZE);
+	}
+
+	/**
+	 * Return the frequency of the entry at the given index.
+	 */
+	private int getFrequency(long index) {
+		return segments[(int) (index/ENTRIES_PER_SEGMENT)].getInt((int) (index%ENTRIES_PER_SEGMENT)*ENTRY_SIZE+8);
+	}
+
+	/**
+	 * Return the frequency of a sequence (0 if it is not in the index).
+	 */
+	public int search(long key) {
+		if (count == 0 || key < samples[0])
+			return 0;
+
+		//find the block that has to contain the key from the samples in memory
+		int low = 0, high = samples.length-1;
+		while (low < high) {
+			int mid = (low+high+1) >>> 1;
+			if (samples[mid] <= key)
+				low = mid;
+			else
+				high = mid-1;
+		}
+		long first = (long) low*sampleInterval;
+		long last = Math.min(first+sampleInterval, count)-1;
+
+		//interpolation search in the block, with every other probe halving the range
+		//so that unevenly spread keys cannot make it slow
+		boolean interpolate = true;
+		while (first <= last) {
+			long firstKey = getKey(first), lastKey = getKey(last);
+			if (key < firstKey || key > lastKey)
+				return 0;
+			long probe;
+			if (interpolate && lastKey > firstKey)
+				probe = first+(long) ((double) (key-firstKey)/(lastKey-firstKey)*(last-first));
+			else
+				probe = (first+last) >>> 1;
+			interpolate = !interpolate;
+
+			long probeKey = getKey(probe);
+			if (probeKey == key)
+				return getFrequency(probe);
+			if (probeKey < key)
+				first = probe+1;
+			else
+				last = probe-1;
+		}
+		return 0;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * Return the number of distinct sequences in the index.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+}
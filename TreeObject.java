@@ -64,7 +64,7 @@ public class TreeObject {
 		if (k<1 || k>31)
 			throw new IllegalArgumentException("Parameter 'k' is out of bounds [1,31].");
 		
-		this.binSequence = binSequence & (~(~0<<(2*k))); //force size of k on binSequence
+		this.binSequence = binSequence & (~(~0L<<(2*k))); //force size of k on binSequence
 		frequency = 1;
 		this.k = k;
 	}